@@ -343,6 +343,10 @@ public abstract class AbstractBeatmapTable extends Composite implements UserData
   }
 
   protected Column<Beatmap, String> addEditColumn() {
+    return addEditColumn(null);
+  }
+
+  protected Column<Beatmap, String> addEditColumn(Header<?> footer) {
     final Column<Beatmap, String> column = new Column<Beatmap, String>(new ButtonCell()) {
       @Override
       public String getValue(Beatmap object) {
@@ -371,7 +375,11 @@ public abstract class AbstractBeatmapTable extends Composite implements UserData
         }
       }
     });
-    table.addColumn(column);
+    if (footer != null) {
+      table.addColumn(column, new TextHeader(""), footer);
+    } else {
+      table.addColumn(column);
+    }
     table.setColumnWidth(column, 55, Unit.PX);
     column.setFieldUpdater(new FieldUpdater<Beatmap, String>() {
       @Override
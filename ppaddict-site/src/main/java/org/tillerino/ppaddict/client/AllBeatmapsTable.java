@@ -6,6 +6,7 @@ import java.util.List;
 import java.util.Map;
 import java.util.Objects;
 
+import javax.annotation.CheckForNull;
 import javax.annotation.Nonnull;
 
 import org.tillerino.ppaddict.client.HelpElements.E;
@@ -94,6 +95,12 @@ public class AllBeatmapsTable extends AbstractBeatmapTable implements HasHelpEle
   public class MyDataProvider extends AsyncDataProvider<Beatmap> {
     @Nonnull
     private BeatmapRangeRequest request = new BeatmapRangeRequest();
+    /**
+     * cursor of the last scrolled result, null until the first scroll. Only used for scrolling;
+     * any change of the request clears the table, which starts over with a fresh query.
+     */
+    @CheckForNull
+    private String cursor = null;
     private boolean enabled = true;
 
     private MyDataProvider() {}
@@ -136,6 +143,11 @@ public class AllBeatmapsTable extends AbstractBeatmapTable implements HasHelpEle
             handler.handle(result);
           }
 
+          cursor = result.cursor;
+          if (result.approachRate != null) {
+            histograms = result;
+            table.redrawFooters();
+          }
           applyBundle(getRequest(), result);
         }
       };
@@ -143,7 +155,13 @@ public class AllBeatmapsTable extends AbstractBeatmapTable implements HasHelpEle
       System.out.println("clean: " + getRequest());
 
       Main.sendPageView("/ppaddict/beatmaps");
-      beatmapService.getRange(getRequest(), callback);
+      // the distribution doesn't change while scrolling
+      getRequest().histograms = !wasScrolled;
+      if (wasScrolled) {
+        beatmapService.getRangeFromCursor(cursor, getRequest(), callback);
+      } else {
+        beatmapService.getRange(getRequest(), callback);
+      }
       pager.lastLoadFired = System.currentTimeMillis();
     }
 
@@ -154,6 +172,11 @@ public class AllBeatmapsTable extends AbstractBeatmapTable implements HasHelpEle
 
     private void setRequest(@Nonnull BeatmapRangeRequest request) {
       this.request = request;
+      cursor = null;
+    }
+
+    private void setCursor(@CheckForNull String cursor) {
+      this.cursor = cursor;
     }
 
     public void setEnabled(boolean enabled) {
@@ -175,6 +198,12 @@ public class AllBeatmapsTable extends AbstractBeatmapTable implements HasHelpEle
 
   List<BundleHandler> bundleLoadHandlers = new LinkedList<>();
 
+  /**
+   * the last bundle which contained histograms; shown as tooltips of the filters
+   */
+  @CheckForNull
+  BeatmapBundle histograms = null;
+
   public void addBundleHandler(BundleHandler handler) {
     bundleLoadHandlers.add(handler);
   }
@@ -190,7 +219,7 @@ public class AllBeatmapsTable extends AbstractBeatmapTable implements HasHelpEle
     makeSortable(addHighPPColumn(), Sort.PERFECT);
 
     addNameColumn();
-    addEditColumn();
+    addEditColumnWithModsFilter();
     addARColumn();
     addODColumn();
     addCSColumn();
@@ -243,6 +272,7 @@ public class AllBeatmapsTable extends AbstractBeatmapTable implements HasHelpEle
     handle(initialData.userData);
 
     applyBundle(provider.getRequest(), initialData.beatmapBundle);
+    provider.setCursor(initialData.beatmapBundle.cursor);
 
     provider.setEnabled(true);
   }
@@ -322,6 +352,36 @@ public class AllBeatmapsTable extends AbstractBeatmapTable implements HasHelpEle
     return column;
   }
 
+  static final String ANY_MODS = "any";
+
+  /**
+   * the mods filter goes below the edit column, which has no footer of its own
+   */
+  private Column<Beatmap, String> addEditColumnWithModsFilter() {
+    Header<String> footer = new FilterFooter<String>(new MinMaxCell.MyTextCell("modscell")) {
+      @Override
+      public String getValue() {
+        String mods = provider.getRequest().mods;
+        return mods != null ? mods : ANY_MODS;
+      }
+    };
+    footer.setUpdater(new FooterValueUpdater<String>() {
+      @Override
+      public void doUpdate(String value) {
+        String mods = value.trim().toUpperCase();
+        if (mods.isEmpty() || mods.equalsIgnoreCase(ANY_MODS)) {
+          mods = null;
+        }
+        if (Objects.equals(mods, provider.getRequest().mods)) {
+          return;
+        }
+        provider.getRequest().mods = mods;
+        reloadTableWithChangedRequest(0);
+      }
+    });
+    return addEditColumn(footer);
+  }
+
   private Column<Beatmap, SafeHtml> addLengthColumn() {
     Header<MinMax> footer =
         new FilterFooter<MinMax>(new MinMaxCell("fivecharminmaxcell", "0:00", "99:59",
@@ -330,6 +390,12 @@ public class AllBeatmapsTable extends AbstractBeatmapTable implements HasHelpEle
           public MinMax getValue() {
             return provider.getRequest().mapLength.getCopy();
           }
+
+          @Override
+          String getTooltip() {
+            return histograms != null
+                ? MinMaxCell.describe(histograms.length, NumberType.TIME) : null;
+          }
         };
     footer.setUpdater(new FooterValueUpdater<MinMax>() {
       @Override
@@ -350,6 +416,12 @@ public class AllBeatmapsTable extends AbstractBeatmapTable implements HasHelpEle
           public MinMax getValue() {
             return provider.getRequest().bpm.getCopy();
           }
+
+          @Override
+          String getTooltip() {
+            return histograms != null
+                ? MinMaxCell.describe(histograms.bpm, NumberType.INTEGER) : null;
+          }
         };
     footer.setUpdater(new FooterValueUpdater<MinMax>() {
       @Override
@@ -370,6 +442,12 @@ public class AllBeatmapsTable extends AbstractBeatmapTable implements HasHelpEle
           public MinMax getValue() {
             return provider.getRequest().starDiff.getCopy();
           }
+
+          @Override
+          String getTooltip() {
+            return histograms != null
+                ? MinMaxCell.describe(histograms.starDiff, NumberType.DECIMAL) : null;
+          }
         };
     footer.setUpdater(new FooterValueUpdater<MinMax>() {
       @Override
@@ -408,6 +486,12 @@ public class AllBeatmapsTable extends AbstractBeatmapTable implements HasHelpEle
           public MinMax getValue() {
             return provider.getRequest().aR.getCopy();
           }
+
+          @Override
+          String getTooltip() {
+            return histograms != null
+                ? MinMaxCell.describe(histograms.approachRate, NumberType.INTEGER) : null;
+          }
         };
     footer.setUpdater(new FooterValueUpdater<MinMax>() {
       @Override
@@ -473,6 +557,14 @@ public class AllBeatmapsTable extends AbstractBeatmapTable implements HasHelpEle
       super(cell);
     }
 
+    /**
+     * @return shown when hovering over the filter; null for none
+     */
+    @CheckForNull
+    String getTooltip() {
+      return null;
+    }
+
     @Override
     public boolean onPreviewColumnSortEvent(Context context, Element elem, NativeEvent event) {
       return false;
@@ -483,7 +575,14 @@ public class AllBeatmapsTable extends AbstractBeatmapTable implements HasHelpEle
       if (filterState.equals(SHOW_FILTER)) {
 
       } else {
+        String tooltip = getTooltip();
+        if (tooltip == null) {
+          super.render(context, sb);
+          return;
+        }
+        sb.appendHtmlConstant("<div title=\"").appendEscaped(tooltip).appendHtmlConstant("\">");
         super.render(context, sb);
+        sb.appendHtmlConstant("</div>");
       }
     }
   }
@@ -3,7 +3,10 @@ package org.tillerino.ppaddict.client;
 import java.util.LinkedList;
 import java.util.List;
 
+import javax.annotation.CheckForNull;
+
 import org.tillerino.ppaddict.shared.Beatmap;
+import org.tillerino.ppaddict.shared.Histogram;
 import org.tillerino.ppaddict.shared.MinMax;
 
 import com.google.gwt.cell.client.AbstractCell;
@@ -181,4 +184,45 @@ public class MinMaxCell extends CompositeCell<MinMax> {
       return null;
     }
   }
+
+  /**
+   * @param numberType only distinguishes {@link NumberType#TIME}. Histograms are not multiplied by
+   *        100 for {@link NumberType#DECIMAL}.
+   * @return one line per non-empty bucket; null if there is no histogram
+   */
+  @CheckForNull
+  static String describe(@CheckForNull Histogram histogram, NumberType numberType) {
+    if (histogram == null) {
+      return null;
+    }
+    StringBuilder lines = new StringBuilder();
+    int last = histogram.counts.length - 1;
+    for (int i = 0; i <= last; i++) {
+      if (histogram.counts[i] == 0) {
+        continue;
+      }
+      if (lines.length() > 0) {
+        lines.append('\n');
+      }
+      String lower = formatBound(histogram.getLowerBound(i), numberType);
+      if (i == last) {
+        lines.append("\u2265 ").append(lower);
+      } else {
+        lines.append(lower).append(" - ")
+            .append(formatBound(histogram.getLowerBound(i + 1), numberType));
+      }
+      lines.append(": ").append(histogram.counts[i]);
+    }
+    return lines.length() > 0 ? lines.toString() : "nothing found";
+  }
+
+  private static String formatBound(double bound, NumberType numberType) {
+    if (numberType == NumberType.TIME) {
+      return Beatmap.secondsToMinuteColonSecond((int) bound);
+    }
+    if (bound == Math.floor(bound)) {
+      return String.valueOf((int) bound);
+    }
+    return String.valueOf(bound);
+  }
 }
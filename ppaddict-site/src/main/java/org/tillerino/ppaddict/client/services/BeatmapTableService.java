@@ -10,4 +10,24 @@ import com.google.gwt.user.client.rpc.RemoteServiceRelativePath;
 @RemoteServiceRelativePath("beatmaps")
 public interface BeatmapTableService extends RemoteService {
   BeatmapBundle getRange(BeatmapRangeRequest request) throws PpaddictException;
+
+  /**
+   * Loads another window of a previous result without evaluating the query again.
+   * 
+   * @param cursor {@link BeatmapBundle#cursor} of a previous result. null to pin the result of the
+   *        request, which is worth it once the user starts scrolling.
+   * @param request the request which the cursor was created for. Only start and length are used,
+   *        unless the cursor expired, in which case the request is executed again.
+   */
+  BeatmapBundle getRangeFromCursor(String cursor, BeatmapRangeRequest request)
+      throws PpaddictException;
+
+  /**
+   * Counts the matches of a request without loading any of them, which is much cheaper than
+   * {@link #getRange(BeatmapRangeRequest)}.
+   * 
+   * @param request start, length and direction are ignored
+   * @return the same as {@link BeatmapBundle#available} for the request
+   */
+  int getCount(BeatmapRangeRequest request) throws PpaddictException;
 }
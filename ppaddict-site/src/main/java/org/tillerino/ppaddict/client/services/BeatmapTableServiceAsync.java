@@ -9,4 +9,9 @@ public interface BeatmapTableServiceAsync {
 
   void getRange(BeatmapRangeRequest request, AsyncCallback<BeatmapBundle> callback);
 
+  void getRangeFromCursor(String cursor, BeatmapRangeRequest request,
+      AsyncCallback<BeatmapBundle> callback);
+
+  void getCount(BeatmapRangeRequest request, AsyncCallback<Integer> callback);
+
 }
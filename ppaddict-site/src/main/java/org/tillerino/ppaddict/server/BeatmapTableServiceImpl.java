@@ -1,12 +1,8 @@
 package org.tillerino.ppaddict.server;
 
-import java.util.ArrayList;
-import java.util.Collection;
 import java.util.Comparator;
-import java.util.Map;
 import java.util.Map.Entry;
 import java.util.TreeMap;
-import java.util.function.ToDoubleFunction;
 
 import javax.annotation.CheckForNull;
 import javax.annotation.Nonnull;
@@ -22,11 +18,18 @@ import org.tillerino.ppaddict.client.services.BeatmapTableService;
 import org.tillerino.ppaddict.server.PersistentUserData.Comment;
 import org.tillerino.ppaddict.server.PpaddictBackend.BeatmapData;
 import org.tillerino.ppaddict.server.auth.Credentials;
+import org.tillerino.ppaddict.server.catalog.BeatmapCatalog;
+import org.tillerino.ppaddict.server.catalog.CatalogManager;
+import org.tillerino.ppaddict.server.catalog.CatalogQuery;
+import org.tillerino.ppaddict.server.catalog.CatalogQuery.Page;
+import org.tillerino.ppaddict.server.catalog.CursorStore;
+import org.tillerino.ppaddict.server.catalog.CursorStore.Cursor;
+import org.tillerino.ppaddict.server.catalog.QueryCache;
 import org.tillerino.ppaddict.shared.Beatmap;
 import org.tillerino.ppaddict.shared.Beatmap.Personalization;
 import org.tillerino.ppaddict.shared.BeatmapBundle;
 import org.tillerino.ppaddict.shared.BeatmapRangeRequest;
-import org.tillerino.ppaddict.shared.BeatmapRangeRequest.Sort;
+import org.tillerino.ppaddict.shared.Histogram;
 import org.tillerino.ppaddict.shared.PpaddictException;
 import org.tillerino.ppaddict.shared.Settings;
 
@@ -34,12 +37,9 @@ import tillerino.tillerinobot.BeatmapMeta;
 import tillerino.tillerinobot.BeatmapMeta.PercentageEstimates;
 import tillerino.tillerinobot.BotBackend;
 import tillerino.tillerinobot.RecommendationsManager;
-import tillerino.tillerinobot.UserDataManager.UserData.BeatmapWithMods;
 
 import com.google.gwt.user.server.rpc.RemoteServiceServlet;
 
-import edu.umd.cs.findbugs.annotations.SuppressFBWarnings;
-
 /**
  * The server-side implementation of the RPC service.
  */
@@ -53,7 +53,13 @@ public class BeatmapTableServiceImpl extends RemoteServiceServlet implements Bea
   UserDataServiceImpl userDataService;
 
   @Inject
-  PpaddictBackend backend;
+  CatalogManager catalogManager;
+
+  @Inject
+  QueryCache queryCache;
+
+  @Inject
+  CursorStore cursorStore;
 
   @Inject
   BotBackend botBackend;
@@ -61,11 +67,22 @@ public class BeatmapTableServiceImpl extends RemoteServiceServlet implements Bea
   @Inject
   RecommendationsManager recommendationsManager;
 
+  @Inject
+  LastRequestWriter lastRequestWriter;
+
+  @Override
+  public void destroy() {
+    // the last requests which are still waiting to be written
+    lastRequestWriter.flush();
+    catalogManager.shutdown();
+    super.destroy();
+  }
+
   @Override
   public BeatmapBundle getRange(final BeatmapRangeRequest request) throws PpaddictException {
     Credentials credentials = userDataService.getCredentials(getThreadLocalRequest());
 
-    PersistentUserData userData =
+    ServerUserData userData =
         credentials != null ? userDataService.getServerUserData(credentials) : null;
 
     BeatmapBundle bundle = executeGetRange(request, credentials, userData);
@@ -74,200 +91,145 @@ public class BeatmapTableServiceImpl extends RemoteServiceServlet implements Bea
     return bundle;
   }
 
-  public BeatmapBundle executeGetRange(@Nonnull final BeatmapRangeRequest request,
-      @CheckForNull Credentials credentials, PersistentUserData userData) throws PpaddictException {
-    System.out.println("server got request: " + request);
-    Settings settings = userData != null ? userData.getSettings() : Settings.DEFAULT_SETTINGS;
-    /*
-     * prepare search objects
-     */
-    String textSearchNeedle;
-    if (request.getSearches().getSearchText().length() > 0) {
-      textSearchNeedle = request.getSearches().getSearchText().trim().toLowerCase();
-    } else {
-      textSearchNeedle = null;
-    }
-    String commentSearchNeedle;
-    if (userData != null && request.getSearches().getSearchComment().length() > 0) {
-      commentSearchNeedle = request.getSearches().getSearchComment().toLowerCase();
-    } else {
-      commentSearchNeedle = null;
-    }
+  @Override
+  public BeatmapBundle getRangeFromCursor(String cursor, final BeatmapRangeRequest request)
+      throws PpaddictException {
+    Credentials credentials = userDataService.getCredentials(getThreadLocalRequest());
 
-    boolean useRangeFilters =
-        (textSearchNeedle == null && commentSearchNeedle == null)
-            || (settings.isApplyOtherFiltersWithTextFilter());
+    ServerUserData userData =
+        credentials != null ? userDataService.getServerUserData(credentials) : null;
 
-    Collection<BeatmapData> selection = new ArrayList<>();
+    String owner = credentials != null ? credentials.identifier : null;
+    Cursor pinned = cursor != null ? cursorStore.get(cursor, owner) : null;
 
-    Map<BeatmapWithMods, BeatmapData> beatmaps = backend.getBeatmaps();
-    if (beatmaps == null) {
-      throw new PpaddictException("The server is restarting or something.");
+    BeatmapBundle bundle;
+    if (pinned != null) {
+      bundle = makeBundle(userData, pinned.catalog, pinned.slice(request.start, request.length));
+    } else {
+      // first scroll or expired: only now the complete result is worth pinning
+      BeatmapCatalog catalog = catalogManager.getCatalog();
+      CatalogQuery query = new CatalogQuery(catalog, request, userData);
+      int[] matches = queryCache.matches(query);
+      cursor = cursorStore.open(query, matches, owner);
+      bundle = makeBundle(userData, catalog, query.slice(matches));
     }
-    for (Entry<BeatmapWithMods, BeatmapData> data : beatmaps.entrySet()) {
-      OsuApiBeatmap apiBeatmap = data.getValue().getBeatmap();
-      PercentageEstimates estimate = data.getValue().getEstimates();
-
-      /*
-       * search in name
-       */
-      if (textSearchNeedle != null) {
-        String longTitle =
-            apiBeatmap.getArtist() + " - " + apiBeatmap.getTitle() + " [" + apiBeatmap.getVersion()
-                + "]";
-        if (!longTitle.toLowerCase().contains(textSearchNeedle)) {
-          continue;
-        }
-      }
-
-      /*
-       * search in comment
-       */
-      if (commentSearchNeedle != null) {
-        Comment c = userData.getBeatMapComment(apiBeatmap.getBeatmapId(), estimate.getMods());
-
-        if (c == null) {
-          continue;
-        }
+    rememberRequest(request, credentials, userData);
+    bundle.cursor = cursor;
+    bundle.loggedIn = userData != null;
 
-        if (commentSearchNeedle.equals("*")) {
-          // code for "any comment"
-        } else {
-          if (!c.text.toLowerCase().contains(commentSearchNeedle)) {
-            continue;
-          }
-        }
-      }
+    return bundle;
+  }
 
-      if (useRangeFilters) {
-        if (request.aR.min != null
-            && apiBeatmap.getApproachRate(estimate.getMods()) < request.aR.min) {
-          continue;
-        }
-        if (request.aR.max != null
-            && apiBeatmap.getApproachRate(estimate.getMods()) > request.aR.max) {
-          continue;
-        }
-        if (request.oD.min != null
-            && apiBeatmap.getOverallDifficulty(estimate.getMods()) < request.oD.min) {
-          continue;
-        }
-        if (request.oD.max != null
-            && apiBeatmap.getOverallDifficulty(estimate.getMods()) > request.oD.max) {
-          continue;
-        }
-        if (request.cS.min != null && apiBeatmap.getCircleSize(estimate.getMods()) < request.cS.min) {
-          continue;
-        }
-        if (request.cS.max != null && apiBeatmap.getCircleSize(estimate.getMods()) > request.cS.max) {
-          continue;
-        }
-        if (request.perfectPP.min != null
-            && (estimate.getPPForAcc(settings.getHighAccuracy() / 100d) < request.perfectPP.min)) {
-          continue;
-        }
-        if (request.perfectPP.max != null
-            && (estimate.getPPForAcc(settings.getHighAccuracy() / 100d) > request.perfectPP.max)) {
-          continue;
-        }
-        if (request.expectedPP.min != null
-            && estimate.getPPForAcc(settings.getLowAccuracy() / 100d) < request.expectedPP.min) {
-          continue;
-        }
-        if (request.expectedPP.max != null
-            && estimate.getPPForAcc(settings.getLowAccuracy() / 100d) > request.expectedPP.max) {
-          continue;
-        }
-        if (request.bpm.min != null && apiBeatmap.getBpm(estimate.getMods()) < request.bpm.min) {
-          continue;
-        }
-        if (request.bpm.max != null && apiBeatmap.getBpm(estimate.getMods()) > request.bpm.max) {
-          continue;
-        }
-        if (request.mapLength.min != null
-            && apiBeatmap.getTotalLength(estimate.getMods()) < request.mapLength.min) {
-          continue;
-        }
-        if (request.mapLength.max != null
-            && apiBeatmap.getTotalLength(estimate.getMods()) > request.mapLength.max) {
-          continue;
-        }
-        Double starDiff = estimate.getStarDiff();
-        if (starDiff == null && request.sortBy == Sort.STAR_DIFF) {
-          continue;
-        }
-        // these are multiplied by 100 for fake decimals
-        if (request.starDiff.min != null
-            && (starDiff == null || starDiff * 100 < request.starDiff.min)) {
-          continue;
-        }
-        if (request.starDiff.max != null
-            && (starDiff == null || starDiff * 100 > request.starDiff.max)) {
-          continue;
-        }
-      }
+  @Override
+  public int getCount(BeatmapRangeRequest request) throws PpaddictException {
+    Credentials credentials = userDataService.getCredentials(getThreadLocalRequest());
 
-      selection.add(data.getValue());
-    }
+    // comment searches need the user data
+    ServerUserData userData =
+        credentials != null ? userDataService.getServerUserData(credentials) : null;
 
-    selection = sort(request, selection, settings);
+    return queryCache.count(new CatalogQuery(catalogManager.getCatalog(), request, userData));
+  }
 
-    if (request.loadedUserRequest) {
-      if (userData != null) {
-        System.out.println("persisting " + request);
-        userData.setLastRequest(request);
-        userDataService.saveUserData(credentials, userData);
-      }
+  public BeatmapBundle executeGetRange(@Nonnull final BeatmapRangeRequest request,
+      @CheckForNull Credentials credentials, ServerUserData userData) throws PpaddictException {
+    BeatmapCatalog catalog = catalogManager.getCatalog();
+
+    CatalogQuery query = new CatalogQuery(catalog, request, userData);
+    BeatmapBundle beatmapBundle;
+    if (request.histograms) {
+      // the histograms need all matches anyway
+      int[] matches = queryCache.matches(query);
+      beatmapBundle = makeBundle(userData, catalog, query.slice(matches));
+      addHistograms(beatmapBundle, catalog, matches);
+    } else {
+      beatmapBundle = makeBundle(userData, catalog, queryCache.execute(query));
     }
 
-    BeatmapBundle beatmapBundle = makeBundle(request, userData, selection);
+    rememberRequest(request, credentials, userData);
 
-    System.out.println(beatmapBundle.beatmaps.size());
+    log.debug("returning {} of {} beatmaps", beatmapBundle.beatmaps.size(),
+        beatmapBundle.available);
 
     return beatmapBundle;
   }
 
-  public Collection<BeatmapData> sort(final BeatmapRangeRequest request,
-      Collection<BeatmapData> selection, Settings settings) {
-    if (request.sortBy != null) {
-      final ToDoubleFunction<BeatmapData> sortProperty = getComparator(request.sortBy, settings);
-      if (sortProperty != null) {
-        /*
-         * n * log n sorting, but with one-time evaluation of function.
-         */
-        TreeMap<Double, BeatmapData> sortedBeatmaps = new TreeMap<>();
-        for (BeatmapData beatmapData : selection) {
-          sortedBeatmaps.put(request.direction * sortProperty.applyAsDouble(beatmapData),
-              beatmapData);
-        }
-        selection = sortedBeatmaps.values();
+  /**
+   * The request is saved in the background, see {@link LastRequestWriter}.
+   */
+  private void rememberRequest(@Nonnull BeatmapRangeRequest request,
+      @CheckForNull Credentials credentials, @CheckForNull ServerUserData userData) {
+    if (request.loadedUserRequest) {
+      if (userData != null && credentials != null) {
+        lastRequestWriter.offer(credentials, request);
       }
     }
-    return selection;
   }
 
-  public BeatmapBundle makeBundle(final BeatmapRangeRequest request, PersistentUserData userData,
-      Collection<BeatmapData> selection) {
-    BeatmapBundle beatmapBundle = new BeatmapBundle();
-    beatmapBundle.available = selection.size();
-    int x = 0;
-    for (BeatmapData data1 : selection) {
-      if (x >= Math.min(selection.size(), request.start)) {
-        Beatmap beatmap = makeBeatmap(userData, data1);
+  /**
+   * Counts all matches in a single pass over the list which the page was just sliced from, so the
+   * histograms don't need another query and come from the query cache along with the matches.
+   */
+  static void addHistograms(@Nonnull BeatmapBundle bundle, @Nonnull BeatmapCatalog catalog,
+      @Nonnull int[] matches) {
+    Histogram approachRate = new Histogram(0, 1, 11);
+    Histogram starDiff = new Histogram(0, .5, 20);
+    Histogram bpm = new Histogram(0, 20, 16);
+    Histogram length = new Histogram(0, 30, 21);
+    for (int row : matches) {
+      approachRate.add(catalog.getApproachRate(row));
+      starDiff.add(catalog.getStarDiff(row));
+      bpm.add(catalog.getBpm(row));
+      length.add(catalog.getLength(row));
+    }
+    bundle.approachRate = approachRate;
+    bundle.starDiff = starDiff;
+    bundle.bpm = bpm;
+    bundle.length = length;
+  }
 
-        beatmapBundle.beatmaps.add(beatmap);
-      }
-      if (beatmapBundle.beatmaps.size() >= request.length) {
-        break;
-      }
-      x++;
+  public BeatmapBundle makeBundle(ServerUserData userData, BeatmapCatalog catalog, Page page) {
+    BeatmapBundle beatmapBundle = new BeatmapBundle();
+    beatmapBundle.available = page.available;
+    Settings settings = userData != null ? userData.getSettings() : Settings.DEFAULT_SETTINGS;
+    for (int row : page.rows) {
+      beatmapBundle.beatmaps.add(makeBeatmap(userData, settings, catalog, row));
     }
     return beatmapBundle;
   }
 
-  public Beatmap makeBeatmap(PersistentUserData userData, BeatmapData data) {
-    Settings settings = userData != null ? userData.getSettings() : Settings.DEFAULT_SETTINGS;
+  /**
+   * reads only the catalog's columns, so this works for catalogs without
+   * {@link BeatmapCatalog#getData(int) data}
+   */
+  private Beatmap makeBeatmap(ServerUserData userData, Settings settings, BeatmapCatalog catalog,
+      int row) {
+    long mods = catalog.getMods(row);
 
+    Beatmap beatmap = new Beatmap();
+    beatmap.approachRate = catalog.getApproachRate(row);
+    beatmap.artist = catalog.getArtist(row);
+    beatmap.beatmapid = catalog.getBeatmapId(row);
+    beatmap.bpm = catalog.getBpm(row);
+    beatmap.circleSize = catalog.getCircleSize(row);
+    beatmap.lowPP = catalog.getPP(row, settings.getLowAccuracy());
+    beatmap.length = catalog.getLength(row);
+    beatmap.highPP = catalog.getPP(row, settings.getHighAccuracy());
+    personalize(userData, beatmap, mods);
+    beatmap.overallDiff = catalog.getOverallDifficulty(row);
+    beatmap.setid = catalog.getSetId(row);
+    beatmap.starDifficulty = catalog.getDisplayStarDiff(row);
+    beatmap.title = catalog.getTitle(row);
+    beatmap.version = catalog.getVersionName(row);
+
+    if (mods != 0) {
+      beatmap.mods = Mods.toShortNamesContinuous(Mods.getMods(mods));
+    }
+    return beatmap;
+  }
+
+  public Beatmap makeBeatmap(ServerUserData userData, BeatmapData data) {
+    Settings settings = userData != null ? userData.getSettings() : Settings.DEFAULT_SETTINGS;
     OsuApiBeatmap apiBeatmap = data.getBeatmap();
     PercentageEstimates estimates = data.getEstimates();
     long mods = estimates.getMods();
@@ -281,15 +243,7 @@ public class BeatmapTableServiceImpl extends RemoteServiceServlet implements Bea
     beatmap.lowPP = estimates.getPPForAcc(settings.getLowAccuracy() / 100);
     beatmap.length = apiBeatmap.getTotalLength(mods);
     beatmap.highPP = estimates.getPPForAcc(settings.getHighAccuracy() / 100);
-    if (userData != null) {
-      Comment comment = userData.getBeatMapComment(beatmap.beatmapid, mods);
-      if (comment != null) {
-        Personalization pers = new Personalization();
-        pers.comment = comment.text;
-        pers.commentDate = BeatmapTableServiceImpl.ago(comment.date);
-        beatmap.personalization = pers;
-      }
-    }
+    personalize(userData, beatmap, mods);
     beatmap.overallDiff = apiBeatmap.getOverallDifficulty(mods);
     beatmap.setid = apiBeatmap.getSetId();
     beatmap.starDifficulty =
@@ -303,6 +257,18 @@ public class BeatmapTableServiceImpl extends RemoteServiceServlet implements Bea
     return beatmap;
   }
 
+  private static void personalize(ServerUserData userData, Beatmap beatmap, long mods) {
+    if (userData != null) {
+      Comment comment = userData.getBeatMapComment(beatmap.beatmapid, mods);
+      if (comment != null) {
+        Personalization pers = new Personalization();
+        pers.comment = comment.text;
+        pers.commentDate = BeatmapTableServiceImpl.ago(comment.date);
+        beatmap.personalization = pers;
+      }
+    }
+  }
+
   public static String ago(long time) {
     long diff = System.currentTimeMillis() - time;
 
@@ -352,57 +318,6 @@ public class BeatmapTableServiceImpl extends RemoteServiceServlet implements Bea
     return "a moment ago";
   }
 
-  private static ToDoubleFunction<BeatmapData> getComparator(final Sort sortBy,
-      final Settings settings) {
-    final ToDoubleFunction<BeatmapData> comparator;
-    switch (sortBy) {
-      case EXPECTED:
-        comparator = new ToDoubleFunction<BeatmapData>() {
-          @Override
-          public double applyAsDouble(BeatmapData value) {
-            return value.getEstimates().getPPForAcc(settings.getLowAccuracy() / 100);
-          }
-        };
-        break;
-      case PERFECT:
-        comparator = new ToDoubleFunction<BeatmapData>() {
-          @Override
-          public double applyAsDouble(BeatmapData value) {
-            return value.getEstimates().getPPForAcc(settings.getHighAccuracy() / 100);
-          }
-        };
-        break;
-      case BPM:
-        comparator = new ToDoubleFunction<BeatmapData>() {
-          @Override
-          public double applyAsDouble(BeatmapData value) {
-            return value.getBeatmap().getBpm(value.getEstimates().getMods());
-          }
-        };
-        break;
-      case LENGTH:
-        comparator = new ToDoubleFunction<BeatmapData>() {
-          @Override
-          public double applyAsDouble(BeatmapData value) {
-            return value.getBeatmap().getTotalLength(value.getEstimates().getMods());
-          }
-        };
-        break;
-      case STAR_DIFF:
-        comparator = new ToDoubleFunction<BeatmapData>() {
-          @SuppressFBWarnings(value = "NP", justification = "null star diff was filtered out")
-          @Override
-          public double applyAsDouble(BeatmapData value) {
-            return value.getEstimates().getStarDiff();
-          }
-        };
-        break;
-      default:
-        comparator = null;
-    }
-    return comparator;
-  }
-
   public static Beatmap fromRecord(CSVRecord record) {
     if (record.size() != 12) {
       throw new RuntimeException("unexpected line length: " + record.size() + " in record "
@@ -428,7 +343,7 @@ public class BeatmapTableServiceImpl extends RemoteServiceServlet implements Bea
     return b;
   }
 
-  public Beatmap makeBeatmap(PersistentUserData userData, final BeatmapMeta meta) {
+  public Beatmap makeBeatmap(ServerUserData userData, final BeatmapMeta meta) {
     BeatmapData data = new BeatmapData() {
       @Override
       public PercentageEstimates getEstimates() {
@@ -0,0 +1,211 @@
+package org.tillerino.ppaddict.server;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import javax.annotation.CheckForNull;
+import javax.annotation.Nonnull;
+import javax.inject.Inject;
+import javax.inject.Named;
+import javax.inject.Singleton;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.tillerino.ppaddict.server.auth.Credentials;
+import org.tillerino.ppaddict.shared.BeatmapRangeRequest;
+import org.tillerino.ppaddict.shared.PpaddictException;
+import org.tillerino.ppaddict.shared.types.PpaddictId;
+
+/**
+ * Saves the users' last requests in the background. Scrolling and typing into the filters sends a
+ * request after another; only the last one is written once the user has been quiet for a while,
+ * but at least every so often while the user keeps going. Until then, {@link #getPending(String)}
+ * has the newest request. Whatever is still pending is written by {@link #flush()} on shutdown.
+ *
+ * @author Tillerino
+ */
+@Singleton
+public class LastRequestWriter {
+  static Logger log = LoggerFactory.getLogger(LastRequestWriter.class);
+
+  /**
+   * see {@link #setQuietPeriod(long)}
+   */
+  public static final long DEFAULT_QUIET_PERIOD = 5000;
+  /**
+   * see {@link #setMaxDelay(long)}
+   */
+  public static final long DEFAULT_MAX_DELAY = 30000;
+
+  static final long CHECK_INTERVAL = 1000;
+  static final long SHUTDOWN_TIMEOUT = 10000;
+
+  static class Pending {
+    @Nonnull
+    final Credentials credentials;
+    @Nonnull
+    BeatmapRangeRequest request;
+    long first;
+    long last;
+    /**
+     * true while the request is being written; the entry stays visible until then
+     */
+    boolean saving = false;
+
+    Pending(@Nonnull Credentials credentials, @Nonnull BeatmapRangeRequest request, long now) {
+      this.credentials = credentials;
+      this.request = request;
+      first = now;
+      last = now;
+    }
+  }
+
+  @Inject
+  UserDataServiceImpl userDataService;
+
+  /**
+   * by {@link Credentials#identifier}; only accessed while holding the lock on this
+   */
+  private final Map<String, Pending> pending = new HashMap<>();
+
+  private long quietPeriod = DEFAULT_QUIET_PERIOD;
+
+  private long maxDelay = DEFAULT_MAX_DELAY;
+
+  @CheckForNull
+  private ScheduledExecutorService writer;
+
+  /**
+   * @param quietPeriod milliseconds without a new request after which the last one is written
+   */
+  @com.google.inject.Inject(optional = true)
+  public void setQuietPeriod(@Named("ppaddict.lastRequest.quietPeriod") long quietPeriod) {
+    this.quietPeriod = quietPeriod;
+  }
+
+  /**
+   * @param maxDelay milliseconds after which a request is written even if there are new ones
+   */
+  @com.google.inject.Inject(optional = true)
+  public void setMaxDelay(@Named("ppaddict.lastRequest.maxDelay") long maxDelay) {
+    this.maxDelay = maxDelay;
+  }
+
+  /**
+   * Replaces the pending request of the user, if any.
+   *
+   * @param request is copied, without the flags which are not persisted
+   */
+  public void offer(@Nonnull Credentials credentials, @Nonnull BeatmapRangeRequest request) {
+    BeatmapRangeRequest copy = new BeatmapRangeRequest(request);
+    copy.loadedUserRequest = false;
+    copy.histograms = false;
+    long now = System.currentTimeMillis();
+    synchronized (this) {
+      Pending entry = pending.get(credentials.identifier);
+      if (entry != null) {
+        entry.request = copy;
+        entry.last = now;
+      } else {
+        pending.put(credentials.identifier, new Pending(credentials, copy, now));
+      }
+      startWriter();
+    }
+  }
+
+  /**
+   * @return the newest request of the user which has not been written yet. Don't modify!
+   */
+  @CheckForNull
+  public synchronized BeatmapRangeRequest getPending(@Nonnull @PpaddictId String identifier) {
+    Pending entry = pending.get(identifier);
+    return entry != null ? entry.request : null;
+  }
+
+  /**
+   * Stops the background thread and writes all pending requests right away. A later
+   * {@link #offer(Credentials, BeatmapRangeRequest)} starts a new thread.
+   */
+  public void flush() {
+    ScheduledExecutorService writer;
+    synchronized (this) {
+      writer = this.writer;
+      this.writer = null;
+    }
+    if (writer != null) {
+      writer.shutdown();
+      try {
+        // let a write in progress finish
+        writer.awaitTermination(SHUTDOWN_TIMEOUT, TimeUnit.MILLISECONDS);
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+      }
+    }
+    write(true);
+  }
+
+  void write(boolean all) {
+    List<Pending> due = new ArrayList<>();
+    long now = System.currentTimeMillis();
+    synchronized (this) {
+      for (Pending entry : pending.values()) {
+        if (!entry.saving
+            && (all || entry.last <= now - quietPeriod || entry.first <= now - maxDelay)) {
+          entry.saving = true;
+          due.add(entry);
+        }
+      }
+    }
+    for (Pending entry : due) {
+      BeatmapRangeRequest request;
+      synchronized (this) {
+        request = entry.request;
+      }
+      try {
+        // comments and settings saved in the meantime are kept
+        synchronized (userDataService.lockFor(entry.credentials)) {
+          userDataService.saveUserData(entry.credentials, userDataService
+              .getServerUserData(entry.credentials).withLastRequest(request));
+        }
+      } catch (PpaddictException | RuntimeException e) {
+        // only the table's state is lost
+        log.warn("could not save last request of " + entry.credentials.identifier, e);
+      }
+      synchronized (this) {
+        entry.saving = false;
+        if (entry.request == request) {
+          pending.remove(entry.credentials.identifier);
+        } else {
+          // a newer request came in while writing, which waits for its own turn
+          entry.first = System.currentTimeMillis();
+        }
+      }
+    }
+  }
+
+  private void startWriter() {
+    if (writer != null) {
+      return;
+    }
+    writer = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+      @Override
+      public Thread newThread(Runnable r) {
+        Thread thread = new Thread(r, "last request writer");
+        thread.setDaemon(true);
+        return thread;
+      }
+    });
+    writer.scheduleWithFixedDelay(new Runnable() {
+      @Override
+      public void run() {
+        write(false);
+      }
+    }, CHECK_INTERVAL, CHECK_INTERVAL, TimeUnit.MILLISECONDS);
+  }
+}
@@ -0,0 +1,221 @@
+package org.tillerino.ppaddict.server;
+
+import javax.annotation.CheckForNull;
+import javax.annotation.Nonnull;
+
+/**
+ * Immutable hash map with primitive long keys. {@link #put(long, Object)} and
+ * {@link #remove(long)} return a new map which shares everything except the path to the changed
+ * entry with this one. This is a hash array mapped trie: every node has up to 32 children, which
+ * are selected by five bits of the key's hash at a time and stored in an array without gaps.
+ *
+ * @author Tillerino
+ */
+public final class PersistentLongMap<V> {
+  private static final int BITS = 5;
+  private static final int MASK = (1 << BITS) - 1;
+
+  private static final class Leaf {
+    final long key;
+    @Nonnull
+    final Object value;
+
+    Leaf(long key, @Nonnull Object value) {
+      this.key = key;
+      this.value = value;
+    }
+  }
+
+  /**
+   * children are {@link Leaf}s or Nodes, one for every bit of the bitmap
+   */
+  private static final class Node {
+    final int bitmap;
+    @Nonnull
+    final Object[] children;
+
+    Node(int bitmap, @Nonnull Object[] children) {
+      this.bitmap = bitmap;
+      this.children = children;
+    }
+
+    int index(int bit) {
+      return Integer.bitCount(bitmap & (bit - 1));
+    }
+
+    Node with(int bit, Object child) {
+      Object[] copy = children.clone();
+      copy[index(bit)] = child;
+      return new Node(bitmap, copy);
+    }
+
+    Node plus(int bit, Object child) {
+      int index = index(bit);
+      Object[] copy = new Object[children.length + 1];
+      System.arraycopy(children, 0, copy, 0, index);
+      copy[index] = child;
+      System.arraycopy(children, index, copy, index + 1, children.length - index);
+      return new Node(bitmap | bit, copy);
+    }
+
+    @CheckForNull
+    Node minus(int bit) {
+      if (children.length == 1) {
+        return null;
+      }
+      int index = index(bit);
+      Object[] copy = new Object[children.length - 1];
+      System.arraycopy(children, 0, copy, 0, index);
+      System.arraycopy(children, index + 1, copy, index, copy.length - index);
+      return new Node(bitmap & ~bit, copy);
+    }
+  }
+
+  private static final PersistentLongMap<Object> EMPTY = new PersistentLongMap<>(null, 0);
+
+  @CheckForNull
+  private final Node root;
+  private final int size;
+
+  private PersistentLongMap(@CheckForNull Node root, int size) {
+    this.root = root;
+    this.size = size;
+  }
+
+  @SuppressWarnings("unchecked")
+  @Nonnull
+  public static <V> PersistentLongMap<V> empty() {
+    return (PersistentLongMap<V>) EMPTY;
+  }
+
+  /**
+   * a bijection, so that different keys never have the same hash
+   */
+  private static long hash(long key) {
+    long h = key * 0x9E3779B97F4A7C15L;
+    return h ^ (h >>> 32);
+  }
+
+  private static int bit(long hash, int shift) {
+    return 1 << ((int) (hash >>> shift) & MASK);
+  }
+
+  @CheckForNull
+  @SuppressWarnings("unchecked")
+  public V get(long key) {
+    long hash = hash(key);
+    Node node = root;
+    for (int shift = 0; node != null; shift += BITS) {
+      int bit = bit(hash, shift);
+      if ((node.bitmap & bit) == 0) {
+        return null;
+      }
+      Object child = node.children[node.index(bit)];
+      if (child instanceof Leaf) {
+        Leaf leaf = (Leaf) child;
+        return leaf.key == key ? (V) leaf.value : null;
+      }
+      node = (Node) child;
+    }
+    return null;
+  }
+
+  /**
+   * @return a map which maps the key to the given value; this map if it already does
+   */
+  @Nonnull
+  public PersistentLongMap<V> put(long key, @Nonnull V value) {
+    V previous = get(key);
+    if (previous == value) {
+      return this;
+    }
+    Leaf leaf = new Leaf(key, value);
+    long hash = hash(key);
+    Node root =
+        this.root == null ? new Node(bit(hash, 0), new Object[] {leaf}) : put(this.root, 0, hash,
+            leaf);
+    return new PersistentLongMap<>(root, previous == null ? size + 1 : size);
+  }
+
+  private static Node put(Node node, int shift, long hash, Leaf leaf) {
+    int bit = bit(hash, shift);
+    if ((node.bitmap & bit) == 0) {
+      return node.plus(bit, leaf);
+    }
+    Object child = node.children[node.index(bit)];
+    if (child instanceof Node) {
+      return node.with(bit, put((Node) child, shift + BITS, hash, leaf));
+    }
+    Leaf other = (Leaf) child;
+    if (other.key == leaf.key) {
+      return node.with(bit, leaf);
+    }
+    return node.with(bit, split(other, hash(other.key), leaf, hash, shift + BITS));
+  }
+
+  /**
+   * @return a node which contains both leaves. The hashes are different, so they end up in
+   *         different children eventually.
+   */
+  private static Node split(Leaf a, long hashA, Leaf b, long hashB, int shift) {
+    int indexA = (int) (hashA >>> shift) & MASK;
+    int indexB = (int) (hashB >>> shift) & MASK;
+    if (indexA == indexB) {
+      return new Node(1 << indexA, new Object[] {split(a, hashA, b, hashB, shift + BITS)});
+    }
+    return new Node((1 << indexA) | (1 << indexB), indexA < indexB ? new Object[] {a, b}
+        : new Object[] {b, a});
+  }
+
+  /**
+   * @return a map without the key; this map if it doesn't contain the key
+   */
+  @Nonnull
+  public PersistentLongMap<V> remove(long key) {
+    if (get(key) == null) {
+      return this;
+    }
+    return new PersistentLongMap<>(remove(root, 0, hash(key)), size - 1);
+  }
+
+  /**
+   * @return null if the node is empty afterwards
+   */
+  @CheckForNull
+  private static Node remove(Node node, int shift, long hash) {
+    int bit = bit(hash, shift);
+    Object child = node.children[node.index(bit)];
+    if (child instanceof Leaf) {
+      return node.minus(bit);
+    }
+    Node removed = remove((Node) child, shift + BITS, hash);
+    return removed != null ? node.with(bit, removed) : node.minus(bit);
+  }
+
+  public int size() {
+    return size;
+  }
+
+  /**
+   * @return the keys in no particular order
+   */
+  @Nonnull
+  public long[] keys() {
+    long[] keys = new long[size];
+    if (root != null) {
+      collect(root, keys, 0);
+    }
+    return keys;
+  }
+
+  private static int collect(Node node, long[] keys, int n) {
+    for (Object child : node.children) {
+      if (child instanceof Leaf) {
+        keys[n++] = ((Leaf) child).key;
+      } else {
+        n = collect((Node) child, keys, n);
+      }
+    }
+    return n;
+  }
+}
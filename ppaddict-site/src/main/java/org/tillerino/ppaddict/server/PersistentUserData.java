@@ -1,6 +1,5 @@
 package org.tillerino.ppaddict.server;
 
-import java.util.SortedSet;
 import java.util.TreeSet;
 
 import javax.annotation.CheckForNull;
@@ -12,6 +11,10 @@ import org.tillerino.ppaddict.shared.PpaddictException;
 import org.tillerino.ppaddict.shared.PpaddictException.NotLinked;
 import org.tillerino.ppaddict.shared.Settings;
 
+/**
+ * The user data as it is persisted by the {@link PpaddictBackend}. The services work with
+ * {@link ServerUserData}.
+ */
 public class PersistentUserData {
   public PersistentUserData() {
 
@@ -57,31 +60,18 @@ public class PersistentUserData {
   @CheckForNull
   private TreeSet<String> beatmapComments;
 
-  @CheckForNull
-  public Comment getBeatMapComment(int id, long mods) {
-    TreeSet<String> comments = getBeatmapComments();
-    if (comments == null) {
-      return null;
-    }
-
-    SortedSet<String> tail = comments.tailSet(id + "-" + mods + "-");
-
-    if (tail.isEmpty()) {
-      return null;
-    }
+  public static class Comment {
+    public final String text;
+    public final long date;
 
-    String entry = tail.first();
-    if (!entry.startsWith(id + "-" + mods + "-")) {
-      return null;
+    public Comment(long date, String text) {
+      this.date = date;
+      this.text = text;
     }
 
-    return new Comment(entry.substring(entry.indexOf('-', entry.indexOf('-') + 1) + 1));
-  }
-
-  public static class Comment {
-    public String text;
-    public long date;
-
+    /**
+     * @param string "date-text"
+     */
     public Comment(String string) {
       int pos = string.indexOf('-');
       date = Long.parseLong(string.substring(0, pos));
@@ -94,23 +84,6 @@ public class PersistentUserData {
     }
   }
 
-  public void putBeatMapComment(int id, long mods, @Nonnull String comment) {
-    TreeSet<String> comments = getBeatmapComments();
-    if (comments == null) {
-      setBeatmapComments(new TreeSet<String>());
-    }
-
-    Comment old = getBeatMapComment(id, mods);
-
-    if (old != null) {
-      comments.remove(id + "-" + mods + "-" + old);
-    }
-
-    if (comment.length() > 0) {
-      comments.add(id + "-" + mods + "-" + System.currentTimeMillis() + "-" + comment);
-    }
-  }
-
   @Nonnull
   private Settings settings = new Settings();
 
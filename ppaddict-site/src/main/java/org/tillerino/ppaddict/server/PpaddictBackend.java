@@ -3,6 +3,7 @@ package org.tillerino.ppaddict.server;
 import java.sql.SQLException;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 
 import javax.annotation.CheckForNull;
 import javax.annotation.Nonnull;
@@ -27,6 +28,30 @@ public interface PpaddictBackend {
     PercentageEstimates getEstimates();
   }
 
+  /**
+   * Changes to {@link PpaddictBackend#getBeatmaps()} between two versions.
+   */
+  public static class BeatmapsDelta {
+    /**
+     * the version after the changes; positive
+     */
+    public final long version;
+    /**
+     * new or changed beatmaps
+     */
+    @Nonnull
+    public final Map<BeatmapWithMods, BeatmapData> upserts;
+    @Nonnull
+    public final Set<BeatmapWithMods> removals;
+
+    public BeatmapsDelta(long version, @Nonnull Map<BeatmapWithMods, BeatmapData> upserts,
+        @Nonnull Set<BeatmapWithMods> removals) {
+      this.version = version;
+      this.upserts = upserts;
+      this.removals = removals;
+    }
+  }
+
   /**
    * tries to load user data for the given credentials.
    * 
@@ -45,7 +70,7 @@ public interface PpaddictBackend {
    * persist the given user data.
    * 
    * this method may only be called from
-   * {@link UserDataServiceImpl#saveUserData(Credentials, PersistentUserData)}. if you want to save
+   * {@link UserDataServiceImpl#saveUserData(Credentials, ServerUserData)}. if you want to save
    * user data, use that method!
    * 
    * @param usedIdentifier
@@ -69,6 +94,14 @@ public interface PpaddictBackend {
   @CheckForNull
   Map<BeatmapWithMods, BeatmapData> getBeatmaps();
 
+  /**
+   * @param version {@link BeatmapsDelta#version} of a previous delta or 0 for all beatmaps
+   * @return the changes since the given version. null if the backend can't tell, in which case
+   *         {@link #getBeatmaps()} has to be used.
+   */
+  @CheckForNull
+  BeatmapsDelta getBeatmapsSince(long version);
+
   public List<GivenRecommendation> loadVisibleRecommendations(@UserId int userId)
       throws SQLException;
 
@@ -50,7 +50,7 @@ public class RecommendationsServiceImpl extends RemoteServiceServlet implements
   public List<Beatmap> getRecommendations() throws PpaddictException {
     Credentials credentials = userDataService.getCredentialsOrThrow(getThreadLocalRequest());
 
-    PersistentUserData userData = userDataService.getServerUserData(credentials);
+    ServerUserData userData = userDataService.getServerUserData(credentials);
 
     int osuId = userData.getLinkedOsuIdOrThrow();
 
@@ -127,7 +127,7 @@ public class RecommendationsServiceImpl extends RemoteServiceServlet implements
         throw ExceptionsUtil.getLoggedWrappedException(log, new NullPointerException(
             "mods not parsable: " + mods));
       }
-      PersistentUserData linkedData =
+      ServerUserData linkedData =
           userDataService.getServerUserData(userDataService
               .getCredentialsOrThrow(getThreadLocalRequest()));
       int osuId = linkedData.getLinkedOsuIdOrThrow();
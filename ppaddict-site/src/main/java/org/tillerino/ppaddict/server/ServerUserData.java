@@ -0,0 +1,167 @@
+package org.tillerino.ppaddict.server;
+
+import java.util.TreeSet;
+
+import javax.annotation.CheckForNull;
+import javax.annotation.Nonnull;
+
+import org.tillerino.osuApiModel.types.UserId;
+import org.tillerino.ppaddict.server.PersistentUserData.Comment;
+import org.tillerino.ppaddict.server.catalog.BeatmapCatalog;
+import org.tillerino.ppaddict.shared.BeatmapRangeRequest;
+import org.tillerino.ppaddict.shared.PpaddictException;
+import org.tillerino.ppaddict.shared.PpaddictException.NotLinked;
+import org.tillerino.ppaddict.shared.Settings;
+
+/**
+ * Immutable version of {@link PersistentUserData}, which is what the services work with. Instances
+ * can be shared between requests without copying them. The "with" methods return a modified copy
+ * which shares everything else with the original, so changing a comment copies a few nodes of the
+ * {@link PersistentLongMap} rather than all comments. The {@link PersistentUserData} is only
+ * created for saving.
+ *
+ * @author Tillerino
+ */
+public final class ServerUserData {
+  public static final ServerUserData EMPTY = new ServerUserData(new Settings(), null, null,
+      PersistentLongMap.<Comment>empty());
+
+  @Nonnull
+  private final Settings settings;
+  @CheckForNull
+  private final BeatmapRangeRequest lastRequest;
+  @CheckForNull
+  private final @UserId Integer linkedOsuId;
+  /**
+   * keyed by {@link BeatmapCatalog#key(int, long)}
+   */
+  @Nonnull
+  private final PersistentLongMap<Comment> comments;
+
+  private ServerUserData(@Nonnull Settings settings, @CheckForNull BeatmapRangeRequest lastRequest,
+      @CheckForNull @UserId Integer linkedOsuId, @Nonnull PersistentLongMap<Comment> comments) {
+    this.settings = settings;
+    this.lastRequest = lastRequest;
+    this.linkedOsuId = linkedOsuId;
+    this.comments = comments;
+  }
+
+  /**
+   * copies and parses the given data, which can be modified afterwards. Comments are stored as
+   * "id-mods-date-text"; if there are several for the same beatmap and mods, the first one counts.
+   */
+  @Nonnull
+  public static ServerUserData of(@Nonnull PersistentUserData data) {
+    PersistentLongMap<Comment> comments = PersistentLongMap.empty();
+    TreeSet<String> entries = data.getBeatmapComments();
+    if (entries != null) {
+      for (String entry : entries) {
+        int idEnd = entry.indexOf('-');
+        int modsEnd = entry.indexOf('-', idEnd + 1);
+        int id = Integer.parseInt(entry.substring(0, idEnd));
+        long mods = Long.parseLong(entry.substring(idEnd + 1, modsEnd));
+        long key = BeatmapCatalog.key(id, mods);
+        if (comments.get(key) == null) {
+          comments = comments.put(key, new Comment(entry.substring(modsEnd + 1)));
+        }
+      }
+    }
+    BeatmapRangeRequest lastRequest = data.getLastRequest();
+    return new ServerUserData(new Settings(data.getSettings()),
+        lastRequest != null ? new BeatmapRangeRequest(lastRequest) : null, data.getLinkedOsuId(),
+        comments);
+  }
+
+  /**
+   * @return a new object for {@link PpaddictBackend#saveUserData(Credentials, PersistentUserData)}
+   */
+  @Nonnull
+  public PersistentUserData toPersistent() {
+    PersistentUserData data = new PersistentUserData();
+    data.setSettings(new Settings(settings));
+    if (lastRequest != null) {
+      data.setLastRequest(new BeatmapRangeRequest(lastRequest));
+    }
+    data.setLinkedOsuId(linkedOsuId);
+    if (comments.size() > 0) {
+      TreeSet<String> entries = new TreeSet<>();
+      for (long key : comments.keys()) {
+        entries.add((key >>> 32) + "-" + (key & 0xffffffffL) + "-" + comments.get(key));
+      }
+      data.setBeatmapComments(entries);
+    }
+    return data;
+  }
+
+  /**
+   * @return a copy, since this object is shared
+   */
+  @Nonnull
+  public Settings getSettings() {
+    return new Settings(settings);
+  }
+
+  /**
+   * @param settings is copied
+   */
+  @Nonnull
+  public ServerUserData withSettings(@Nonnull Settings settings) {
+    return new ServerUserData(new Settings(settings), lastRequest, linkedOsuId, comments);
+  }
+
+  /**
+   * @return Don't modify!
+   */
+  @CheckForNull
+  public BeatmapRangeRequest getLastRequest() {
+    return lastRequest;
+  }
+
+  /**
+   * @param lastRequest is copied
+   */
+  @Nonnull
+  public ServerUserData withLastRequest(@Nonnull BeatmapRangeRequest lastRequest) {
+    return new ServerUserData(settings, new BeatmapRangeRequest(lastRequest), linkedOsuId,
+        comments);
+  }
+
+  @CheckForNull
+  public @UserId Integer getLinkedOsuId() {
+    return linkedOsuId;
+  }
+
+  @Nonnull
+  public @UserId int getLinkedOsuIdOrThrow() throws NotLinked {
+    Integer id = getLinkedOsuId();
+    if (id == null) {
+      throw new PpaddictException.NotLinked();
+    }
+    return id;
+  }
+
+  /**
+   * @return comments by {@link BeatmapCatalog#key(int, long)}
+   */
+  @Nonnull
+  public PersistentLongMap<Comment> getComments() {
+    return comments;
+  }
+
+  @CheckForNull
+  public Comment getBeatMapComment(int id, long mods) {
+    return comments.get(BeatmapCatalog.key(id, mods));
+  }
+
+  /**
+   * @param comment an empty comment removes the comment
+   */
+  @Nonnull
+  public ServerUserData withBeatMapComment(int id, long mods, @Nonnull String comment) {
+    long key = BeatmapCatalog.key(id, mods);
+    PersistentLongMap<Comment> comments =
+        comment.length() > 0 ? this.comments.put(key, new Comment(System.currentTimeMillis(),
+            comment)) : this.comments.remove(key);
+    return new ServerUserData(settings, lastRequest, linkedOsuId, comments);
+  }
+}
@@ -0,0 +1,195 @@
+package org.tillerino.ppaddict.server;
+
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Objects;
+
+import javax.annotation.CheckForNull;
+import javax.annotation.Nonnull;
+import javax.inject.Named;
+import javax.inject.Singleton;
+
+import org.tillerino.ppaddict.server.auth.Credentials;
+import org.tillerino.ppaddict.shared.types.PpaddictId;
+
+/**
+ * Keeps recently used {@link ServerUserData} by {@link Credentials#identifier}, so that every
+ * RPC doesn't have to go to {@link PpaddictBackend#loadUserData(Credentials)}. The cache is
+ * written through by {@link UserDataServiceImpl#saveUserData(Credentials, ServerUserData)}.
+ * Entries expire after a while, which bounds how stale they can get if another server writes to
+ * the same backend.
+ *
+ * <p>
+ * Linking an osu account happens in the backend, which then forwards the identifier to the data of
+ * the osu account. The cache can't see that, so identifiers are not served from the cache between
+ * {@link #linking(String)} and the first load which shows a linked account. Several identifiers can
+ * be forwarded to the same data, so saving data of a linked account drops the entries of all
+ * identifiers which are linked to the same account.
+ *
+ * @author Tillerino
+ */
+@Singleton
+public class UserDataCache {
+  /**
+   * see {@link #setMaxEntries(int)}
+   */
+  public static final int DEFAULT_MAX_ENTRIES = 10000;
+  /**
+   * see {@link #setTimeout(long)}
+   */
+  public static final long DEFAULT_TIMEOUT = 5 * 60 * 1000;
+  /**
+   * how long an identifier is considered to be linking after {@link #linking(String)}
+   */
+  static final long LINKING_TIMEOUT = 30 * 60 * 1000;
+
+  static class Entry {
+    @Nonnull
+    final ServerUserData data;
+    final long loaded = System.currentTimeMillis();
+
+    Entry(@Nonnull ServerUserData data) {
+      this.data = data;
+    }
+  }
+
+  private final LinkedHashMap<String, Entry> entries = new LinkedHashMap<>(16, .75f, true);
+
+  /**
+   * identifiers which might be linked any moment and the time when linking started
+   */
+  private final Map<String, Long> linking = new HashMap<>();
+
+  /**
+   * counts saves and links, see {@link #getModifications()}
+   */
+  private long modifications = 0;
+
+  private int maxEntries = DEFAULT_MAX_ENTRIES;
+
+  private long timeout = DEFAULT_TIMEOUT;
+
+  /**
+   * @param maxEntries the least recently used entries are dropped beyond this. 0 disables the
+   *        cache.
+   */
+  @com.google.inject.Inject(optional = true)
+  public void setMaxEntries(@Named("ppaddict.userData.cacheSize") int maxEntries) {
+    this.maxEntries = maxEntries;
+  }
+
+  /**
+   * @param timeout milliseconds after which an entry is loaded from the backend again
+   */
+  @com.google.inject.Inject(optional = true)
+  public void setTimeout(@Named("ppaddict.userData.cacheTimeout") long timeout) {
+    this.timeout = timeout;
+  }
+
+  /**
+   * @return the cached data; null if there is none or it must be loaded from the backend
+   */
+  @CheckForNull
+  public synchronized ServerUserData get(@Nonnull @PpaddictId String identifier) {
+    Entry entry = entries.get(identifier);
+    if (entry == null) {
+      return null;
+    }
+    long now = System.currentTimeMillis();
+    if (entry.loaded < now - timeout || isLinking(identifier, now)) {
+      entries.remove(identifier);
+      return null;
+    }
+    return entry.data;
+  }
+
+  /**
+   * Call before loading from the backend and pass the result to
+   * {@link #loaded(String, ServerUserData, long)}.
+   */
+  public synchronized long getModifications() {
+    return modifications;
+  }
+
+  /**
+   * @param data as loaded from the backend
+   * @param modifications {@link #getModifications()} before loading. If anything was saved in the
+   *        meantime, the loaded data might be older than that and is not cached.
+   */
+  public synchronized void loaded(@Nonnull @PpaddictId String identifier,
+      @Nonnull ServerUserData data, long modifications) {
+    if (modifications != this.modifications) {
+      return;
+    }
+    long now = System.currentTimeMillis();
+    if (isLinking(identifier, now)) {
+      if (data.getLinkedOsuId() == null) {
+        return;
+      }
+      linking.remove(identifier);
+    }
+    put(identifier, data);
+  }
+
+  /**
+   * @param data as saved to the backend
+   */
+  public synchronized void saved(@Nonnull @PpaddictId String identifier,
+      @Nonnull ServerUserData data) {
+    modifications++;
+    Integer linkedOsuId = data.getLinkedOsuId();
+    if (linkedOsuId != null) {
+      for (Iterator<Entry> iterator = entries.values().iterator(); iterator.hasNext();) {
+        if (Objects.equals(linkedOsuId, iterator.next().data.getLinkedOsuId())) {
+          iterator.remove();
+        }
+      }
+    }
+    if (!isLinking(identifier, System.currentTimeMillis())) {
+      put(identifier, data);
+    } else {
+      entries.remove(identifier);
+    }
+  }
+
+  /**
+   * Call when the user is about to link an osu account.
+   */
+  public synchronized void linking(@Nonnull @PpaddictId String identifier) {
+    modifications++;
+    entries.remove(identifier);
+    long now = System.currentTimeMillis();
+    for (Iterator<Long> iterator = linking.values().iterator(); iterator.hasNext();) {
+      if (iterator.next() < now - LINKING_TIMEOUT) {
+        iterator.remove();
+      }
+    }
+    linking.put(identifier, now);
+  }
+
+  private boolean isLinking(String identifier, long now) {
+    Long started = linking.get(identifier);
+    if (started == null) {
+      return false;
+    }
+    if (started < now - LINKING_TIMEOUT) {
+      linking.remove(identifier);
+      return false;
+    }
+    return true;
+  }
+
+  private void put(String identifier, ServerUserData data) {
+    if (maxEntries <= 0) {
+      return;
+    }
+    entries.put(identifier, new Entry(data));
+    while (entries.size() > maxEntries) {
+      Iterator<String> eldest = entries.keySet().iterator();
+      eldest.next();
+      eldest.remove();
+    }
+  }
+}
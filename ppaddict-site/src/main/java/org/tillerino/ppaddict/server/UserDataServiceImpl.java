@@ -4,7 +4,6 @@ import java.io.IOException;
 import java.sql.SQLException;
 import java.util.ArrayList;
 import java.util.Map;
-import java.util.TreeSet;
 
 import javax.annotation.CheckForNull;
 import javax.annotation.Nonnull;
@@ -13,6 +12,7 @@ import javax.inject.Singleton;
 import javax.servlet.http.Cookie;
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
+import javax.servlet.http.HttpSession;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -25,6 +25,7 @@ import org.tillerino.ppaddict.server.auth.AuthLeaveService;
 import org.tillerino.ppaddict.server.auth.AuthLogoutService;
 import org.tillerino.ppaddict.server.auth.AuthenticatorService;
 import org.tillerino.ppaddict.server.auth.AuthenticatorServices;
+import org.tillerino.ppaddict.server.auth.CookieSigner;
 import org.tillerino.ppaddict.server.auth.Credentials;
 import org.tillerino.ppaddict.shared.BeatmapBundle;
 import org.tillerino.ppaddict.shared.BeatmapRangeRequest;
@@ -52,6 +53,12 @@ public class UserDataServiceImpl extends RemoteServiceServlet implements UserDat
   @Inject
   BotBackend botBackend;
 
+  @Inject
+  UserDataCache userDataCache;
+
+  @Inject
+  LastRequestWriter lastRequestWriter;
+
   @Inject
   AuthLogoutService logoutService;
 
@@ -61,6 +68,9 @@ public class UserDataServiceImpl extends RemoteServiceServlet implements UserDat
   @Inject
   AuthLeaveService leaveService;
 
+  @Inject
+  CookieSigner cookieSigner;
+
   @Inject
   @AuthenticatorServices
   Map<String, AuthenticatorService> authServices;
@@ -70,6 +80,16 @@ public class UserDataServiceImpl extends RemoteServiceServlet implements UserDat
 
   private static final long serialVersionUID = 1L;
 
+  /**
+   * see {@link #lockFor(Credentials)}
+   */
+  private final Object[] locks = new Object[64];
+  {
+    for (int i = 0; i < locks.length; i++) {
+      locks[i] = new Object();
+    }
+  }
+
   @Override
   public ClientUserData getStatus() throws PpaddictException {
     HttpServletRequest req = getThreadLocalRequest();
@@ -89,12 +109,14 @@ public class UserDataServiceImpl extends RemoteServiceServlet implements UserDat
 
     ClientUserData userData = userDataWithPersistentUserData.userData;
 
-    BeatmapRangeRequest request =
-        userDataWithPersistentUserData.persistentUserData != null ? userDataWithPersistentUserData.persistentUserData
-            .getLastRequest() : null;
-    if (request == null) {
-      request = new BeatmapRangeRequest();
+    BeatmapRangeRequest lastRequest =
+        credentials != null ? lastRequestWriter.getPending(credentials.identifier) : null;
+    if (lastRequest == null && userDataWithPersistentUserData.persistentUserData != null) {
+      lastRequest = userDataWithPersistentUserData.persistentUserData.getLastRequest();
     }
+    // the last request is shared
+    BeatmapRangeRequest request =
+        lastRequest != null ? new BeatmapRangeRequest(lastRequest) : new BeatmapRangeRequest();
     if (request.start > 0) {
       request.start = 0;
       request.length = AbstractBeatmapTable.PAGE_SIZE;
@@ -111,10 +133,10 @@ public class UserDataServiceImpl extends RemoteServiceServlet implements UserDat
     @Nonnull
     ClientUserData userData;
     @CheckForNull
-    PersistentUserData persistentUserData;
+    ServerUserData persistentUserData;
 
     @Nonnull
-    public PersistentUserData getServerUserDataOrThrow() throws NotLoggedIn {
+    public ServerUserData getServerUserDataOrThrow() throws NotLoggedIn {
       if (persistentUserData == null) {
         throw new NotLoggedIn();
       }
@@ -127,7 +149,7 @@ public class UserDataServiceImpl extends RemoteServiceServlet implements UserDat
     }
 
     public UserData(@Nonnull ClientUserData userData,
-        @CheckForNull PersistentUserData persistentUserData) {
+        @CheckForNull ServerUserData persistentUserData) {
       super();
       this.userData = userData;
       this.persistentUserData = persistentUserData;
@@ -135,7 +157,7 @@ public class UserDataServiceImpl extends RemoteServiceServlet implements UserDat
   }
 
   /**
-   * creates a {@link ClientUserData} object and since {@link PersistentUserData} needs to be loaded
+   * creates a {@link ClientUserData} object and since {@link ServerUserData} needs to be loaded
    * anyway, we'll return it as well.
    * 
    * @param req
@@ -154,7 +176,7 @@ public class UserDataServiceImpl extends RemoteServiceServlet implements UserDat
       data.id = credentials.identifier;
       data.nickname = credentials.displayName;
       data.logoutURL = logoutService.getLogoutURL(referer);
-      PersistentUserData persistent = getServerUserData(credentials);
+      ServerUserData persistent = getServerUserData(credentials);
       data.settings = persistent.getSettings();
       Integer linkedId = persistent.getLinkedOsuId();
       if (linkedId != null) {
@@ -183,49 +205,63 @@ public class UserDataServiceImpl extends RemoteServiceServlet implements UserDat
   }
 
   /**
-   * Retreives a user's persistend data or creates a new object
+   * Retreives a user's persistend data or creates a new object. Recently used data comes from the
+   * {@link UserDataCache}.
    * 
    * @param credentials
-   * @return not null, always a copy
+   * @return not null, immutable
    * @throws PpaddictException
    */
   @Nonnull
-  public PersistentUserData getServerUserData(@Nonnull Credentials credentials)
+  public ServerUserData getServerUserData(@Nonnull Credentials credentials)
       throws PpaddictException {
-    PersistentUserData data;
+    ServerUserData cached = userDataCache.get(credentials.identifier);
+    if (cached != null) {
+      return cached;
+    }
+    long modifications = userDataCache.getModifications();
+    PersistentUserData persistent;
     try {
-      data = backend.loadUserData(credentials);
+      persistent = backend.loadUserData(credentials);
     } catch (SQLException e) {
       throw ExceptionsUtil.getLoggedWrappedException(log, e);
     }
-    if (data == null) {
-      data = new PersistentUserData();
-    } else {
-      data = new PersistentUserData(data);
-    }
+    ServerUserData data = persistent != null ? ServerUserData.of(persistent) : ServerUserData.EMPTY;
+    userDataCache.loaded(credentials.identifier, data, modifications);
     return data;
   }
 
   @Override
   public void saveSettings(@Nonnull Settings s) throws PpaddictException {
     Credentials credentials = getCredentialsOrThrow();
-    PersistentUserData data = getServerUserData(credentials);
-    data.setSettings(s);
-    saveUserData(credentials, data);
+    synchronized (lockFor(credentials)) {
+      saveUserData(credentials, getServerUserData(credentials).withSettings(s));
+    }
+  }
+
+  /**
+   * Hold this lock while reading, modifying and saving a user's data, so that concurrent changes
+   * of the same user don't overwrite each other. Several users share a lock.
+   */
+  @Nonnull
+  public Object lockFor(@Nonnull Credentials credentials) {
+    return locks[(credentials.identifier.hashCode() & Integer.MAX_VALUE) % locks.length];
   }
 
-  public void saveUserData(@Nonnull Credentials credentials, @Nonnull PersistentUserData data)
+  public void saveUserData(@Nonnull Credentials credentials, @Nonnull ServerUserData data)
       throws PpaddictException {
-    PersistentUserData saving = new PersistentUserData(data);
+    PersistentUserData saving = data.toPersistent();
     BeatmapRangeRequest lastRequest = saving.getLastRequest();
     if (lastRequest != null) {
       lastRequest.loadedUserRequest = false;
+      lastRequest.histograms = false;
     }
     try {
       backend.saveUserData(credentials, saving);
     } catch (SQLException e) {
       throw ExceptionsUtil.getLoggedWrappedException(log, e);
     }
+    userDataCache.saved(credentials.identifier, data);
   }
 
   @Override
@@ -243,32 +279,31 @@ public class UserDataServiceImpl extends RemoteServiceServlet implements UserDat
 
     Credentials credentials = getCredentialsOrThrow();
 
-    PersistentUserData userData = getServerUserData(credentials);
-
-    if (userData.getBeatmapComments() == null) {
-      userData.setBeatmapComments(new TreeSet<String>());
-    }
-
     comment =
         comment.substring(0, Math.min(ClientUserData.BEATMAP_COMMENT_LENGTH, comment.length()))
             .trim();
 
-    userData.putBeatMapComment(beatmapid, modsAsLong, comment);
-
-    saveUserData(credentials, userData);
+    synchronized (lockFor(credentials)) {
+      saveUserData(credentials,
+          getServerUserData(credentials).withBeatMapComment(beatmapid, modsAsLong, comment));
+    }
   }
 
   public void rememberCredentials(HttpServletRequest req, HttpServletResponse resp,
       Credentials credentials) throws PpaddictException {
     credentials.expires = System.currentTimeMillis() + 4 * 7l * 24 * 60 * 60 * 1000;
 
-    req.getSession().setAttribute(UserDataServiceImpl.CREDENTIALS_SESSION_KEY, credentials);
-
     Cookie cookie;
-    try {
-      cookie = new Cookie(CREDENTIALS_COOKIE_KEY, backend.createCookie(credentials));
-    } catch (SQLException e) {
-      throw ExceptionsUtil.getLoggedWrappedException(log, e);
+    if (cookieSigner.isEnabled()) {
+      // the cookie is all we need, so there is no session
+      cookie = new Cookie(CREDENTIALS_COOKIE_KEY, cookieSigner.signCredentials(credentials));
+    } else {
+      req.getSession().setAttribute(UserDataServiceImpl.CREDENTIALS_SESSION_KEY, credentials);
+      try {
+        cookie = new Cookie(CREDENTIALS_COOKIE_KEY, backend.createCookie(credentials));
+      } catch (SQLException e) {
+        throw ExceptionsUtil.getLoggedWrappedException(log, e);
+      }
     }
 
     cookie.setPath("/");
@@ -278,7 +313,10 @@ public class UserDataServiceImpl extends RemoteServiceServlet implements UserDat
 
   @CheckForNull
   public Credentials getCredentials(HttpServletRequest req) throws PpaddictException {
-    Credentials credentials = (Credentials) req.getSession().getAttribute(CREDENTIALS_SESSION_KEY);
+    // don't create a session for anonymous users
+    HttpSession session = req.getSession(false);
+    Credentials credentials =
+        session != null ? (Credentials) session.getAttribute(CREDENTIALS_SESSION_KEY) : null;
 
     if (credentials != null) {
       return credentials;
@@ -290,6 +328,11 @@ public class UserDataServiceImpl extends RemoteServiceServlet implements UserDat
       return null;
     }
 
+    if (CookieSigner.isSigned(cookie.getValue())) {
+      return cookieSigner.verifyCredentials(cookie.getValue());
+    }
+
+    // cookies from before signing or without keys configured
     try {
       credentials = backend.resolveCookie(cookie.getValue());
     } catch (SQLException e) {
@@ -314,7 +357,10 @@ public class UserDataServiceImpl extends RemoteServiceServlet implements UserDat
   }
 
   public void logout(HttpServletRequest req, HttpServletResponse resp) {
-    req.getSession().removeAttribute(CREDENTIALS_SESSION_KEY);
+    HttpSession session = req.getSession(false);
+    if (session != null) {
+      session.removeAttribute(CREDENTIALS_SESSION_KEY);
+    }
 
     Cookie cookie = findMyCookie(req.getCookies());
     if (cookie != null) {
@@ -326,6 +372,7 @@ public class UserDataServiceImpl extends RemoteServiceServlet implements UserDat
   @Override
   public String getLinkString() throws PpaddictException {
     Credentials credentials = getCredentialsOrThrow();
+    userDataCache.linking(credentials.identifier);
     try {
       return backend.getLinkString(credentials.identifier, credentials.displayName);
     } catch (SQLException e) {
@@ -349,14 +396,14 @@ public class UserDataServiceImpl extends RemoteServiceServlet implements UserDat
   @SuppressFBWarnings(value = "NP", justification = "checked")
   public @UserId int getUserIdOrThrow(HttpServletRequest threadLocalRequest)
       throws PpaddictException {
-    PersistentUserData persistentUserData = getLinkedDataOrThrow(threadLocalRequest);
+    ServerUserData persistentUserData = getLinkedDataOrThrow(threadLocalRequest);
     return persistentUserData.getLinkedOsuId();
   }
 
-  public @Nonnull PersistentUserData getLinkedDataOrThrow(HttpServletRequest threadLocalRequest)
+  public @Nonnull ServerUserData getLinkedDataOrThrow(HttpServletRequest threadLocalRequest)
       throws PpaddictException {
     Credentials credentials = getCredentialsOrThrow(threadLocalRequest);
-    PersistentUserData persistentUserData = getServerUserData(credentials);
+    ServerUserData persistentUserData = getServerUserData(credentials);
     if (persistentUserData.getLinkedOsuId() == null) {
       throw new PpaddictException.NotLinked();
     }
@@ -3,14 +3,16 @@ package org.tillerino.ppaddict.server.auth;
 import java.io.IOException;
 import java.util.Map;
 
+import javax.annotation.CheckForNull;
 import javax.inject.Inject;
 import javax.inject.Singleton;
 import javax.servlet.ServletException;
+import javax.servlet.http.Cookie;
 import javax.servlet.http.HttpServlet;
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
+import javax.servlet.http.HttpSession;
 
-import org.scribe.model.Token;
 import org.tillerino.ppaddict.server.UserDataServiceImpl;
 import org.tillerino.ppaddict.shared.PpaddictException;
 
@@ -27,24 +29,30 @@ public class AuthArriveService extends HttpServlet {
   @Inject
   UserDataServiceImpl userDataService;
 
-  static final String AUTH_RETURN_TO_SESSION_KEY = "ppaddict.auth.returnTo";
-  static final String AUTH_REQUEST_TOKEN_SESSION_KEY = "ppaddict.auth.requestToken";
-  static final String AUTH_SERVICE_SESSION_KEY = "ppaddict.auth.service";
+  @Inject
+  CookieSigner cookieSigner;
+
+  static final String AUTH_STATE_SESSION_KEY = "ppaddict.auth.state";
+  static final String AUTH_STATE_COOKIE_KEY = "ppaddict.auth.state";
+  /**
+   * see {@link CookieSigner#sign(String, byte[])}
+   */
+  static final String AUTH_STATE_PURPOSE = "state";
 
   @Override
   protected void doGet(HttpServletRequest req, HttpServletResponse resp) throws ServletException,
       IOException {
-    String returnTo = (String) req.getSession().getAttribute(AUTH_RETURN_TO_SESSION_KEY);
-    Token requestToken = (Token) req.getSession().getAttribute(AUTH_REQUEST_TOKEN_SESSION_KEY);
-    String serviceKey = (String) req.getSession().getAttribute(AUTH_SERVICE_SESSION_KEY);
+    AuthState state = takeState(req, resp);
 
-    req.getSession().removeAttribute(AUTH_RETURN_TO_SESSION_KEY);
-    req.getSession().removeAttribute(AUTH_REQUEST_TOKEN_SESSION_KEY);
-    req.getSession().removeAttribute(AUTH_SERVICE_SESSION_KEY);
+    AuthenticatorService service = state != null ? services.get(state.serviceKey) : null;
 
-    AuthenticatorService service = services.get(serviceKey);
+    if (service == null) {
+      // expired, tampered with or never left
+      resp.sendError(400);
+      return;
+    }
 
-    Credentials credentials = service.createUser(service.getService(), req, requestToken);
+    Credentials credentials = service.createUser(service.getService(), req, state.requestToken);
 
     try {
       userDataService.rememberCredentials(req, resp, credentials);
@@ -53,6 +61,60 @@ public class AuthArriveService extends HttpServlet {
       return;
     }
 
-    resp.sendRedirect(returnTo);
+    resp.sendRedirect(state.returnTo);
+  }
+
+  /**
+   * Keeps the state in a signed cookie, so that no session is required and the user can arrive at
+   * any server. Only if there are no keys for signing, the state goes into the session.
+   */
+  void rememberState(HttpServletRequest req, HttpServletResponse resp, AuthState state) {
+    if (!cookieSigner.isEnabled()) {
+      req.getSession().setAttribute(AUTH_STATE_SESSION_KEY, state);
+      return;
+    }
+    Cookie cookie =
+        new Cookie(AUTH_STATE_COOKIE_KEY, cookieSigner.sign(AUTH_STATE_PURPOSE, state.toBytes()));
+    cookie.setPath("/");
+    cookie.setMaxAge((int) (AuthState.TIMEOUT / 1000));
+    resp.addCookie(cookie);
+  }
+
+  /**
+   * Removes the state which was remembered when leaving.
+   *
+   * @return null if there is none or it has expired
+   */
+  @CheckForNull
+  AuthState takeState(HttpServletRequest req, HttpServletResponse resp) {
+    AuthState state = null;
+
+    HttpSession session = req.getSession(false);
+    if (session != null) {
+      state = (AuthState) session.getAttribute(AUTH_STATE_SESSION_KEY);
+      session.removeAttribute(AUTH_STATE_SESSION_KEY);
+    }
+
+    Cookie[] cookies = req.getCookies();
+    if (cookies != null) {
+      for (Cookie cookie : cookies) {
+        if (!cookie.getName().equals(AUTH_STATE_COOKIE_KEY)) {
+          continue;
+        }
+        byte[] payload = cookieSigner.verify(AUTH_STATE_PURPOSE, cookie.getValue());
+        if (payload != null) {
+          state = AuthState.fromBytes(payload);
+        }
+        Cookie removal = new Cookie(AUTH_STATE_COOKIE_KEY, "");
+        removal.setPath("/");
+        removal.setMaxAge(0);
+        resp.addCookie(removal);
+      }
+    }
+
+    if (state == null || state.expires < System.currentTimeMillis()) {
+      return null;
+    }
+    return state;
   }
 }
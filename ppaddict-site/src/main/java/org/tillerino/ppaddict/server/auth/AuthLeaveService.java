@@ -2,9 +2,12 @@ package org.tillerino.ppaddict.server.auth;
 
 import java.io.IOException;
 import java.io.UnsupportedEncodingException;
+import java.net.URI;
+import java.net.URISyntaxException;
 import java.net.URLEncoder;
 import java.util.Map;
 
+import javax.annotation.CheckForNull;
 import javax.inject.Inject;
 import javax.inject.Singleton;
 import javax.servlet.ServletException;
@@ -22,10 +25,18 @@ public class AuthLeaveService extends HttpServlet {
 
   public static final String PATH = "/authleave";
 
+  /**
+   * longer return URLs are rejected, see {@link #localPath(String)}
+   */
+  static final int MAX_RETURN_TO_LENGTH = 2048;
+
   @Inject
   @AuthenticatorServices
   Map<String, AuthenticatorService> services;
 
+  @Inject
+  AuthArriveService arriveService;
+
   @Override
   protected void doGet(HttpServletRequest req, HttpServletResponse resp) throws ServletException,
       IOException {
@@ -33,26 +44,67 @@ public class AuthLeaveService extends HttpServlet {
 
     String serviceKey = req.getParameter("service");
 
-    AuthenticatorService authService = services.get(serviceKey);
+    AuthenticatorService authService = serviceKey != null ? services.get(serviceKey) : null;
 
-    OAuthService service = authService.getService();
+    // we only return to our own pages
+    if (authService == null || finalReturnUrl == null
+        || !finalReturnUrl.equals(localPath(finalReturnUrl))) {
+      resp.sendError(400);
+      return;
+    }
 
-    req.getSession().setAttribute(AuthArriveService.AUTH_RETURN_TO_SESSION_KEY, finalReturnUrl);
-    req.getSession().setAttribute(AuthArriveService.AUTH_SERVICE_SESSION_KEY, serviceKey);
+    OAuthService service = authService.getService();
 
     Token token = null;
     if (service instanceof OAuth10aServiceImpl) {
       token = service.getRequestToken();
     }
-    req.getSession().setAttribute(AuthArriveService.AUTH_REQUEST_TOKEN_SESSION_KEY, token);
+    arriveService.rememberState(req, resp, new AuthState(finalReturnUrl, serviceKey, token,
+        System.currentTimeMillis() + AuthState.TIMEOUT));
     resp.sendRedirect(service.getAuthorizationUrl(token));
   }
 
-  public String getURL(String service, String returnTo) {
+  /**
+   * @param returnTo URL of one of our pages; only the {@link #localPath(String) local path} is used
+   */
+  public String getURL(String service, @CheckForNull String returnTo) {
+    String localPath = localPath(returnTo);
     try {
-      return PATH + "?service=" + service + "&returnTo=" + URLEncoder.encode(returnTo, "UTF-8");
+      return PATH + "?service=" + service + "&returnTo="
+          + URLEncoder.encode(localPath != null ? localPath : "/", "UTF-8");
     } catch (UnsupportedEncodingException e) {
       throw new RuntimeException(e);
     }
   }
+
+  /**
+   * @return path, query and fragment of the URL without scheme and host. null if the URL can't be
+   *         parsed, doesn't have an absolute path or is longer than {@value #MAX_RETURN_TO_LENGTH}
+   *         characters.
+   */
+  @CheckForNull
+  static String localPath(@CheckForNull String url) {
+    if (url == null || url.length() > MAX_RETURN_TO_LENGTH) {
+      return null;
+    }
+    URI uri;
+    try {
+      uri = new URI(url);
+    } catch (URISyntaxException e) {
+      return null;
+    }
+    String path = uri.getRawPath();
+    // "//host" would be another site
+    if (path == null || !path.startsWith("/") || path.startsWith("//")) {
+      return null;
+    }
+    StringBuilder local = new StringBuilder(path);
+    if (uri.getRawQuery() != null) {
+      local.append('?').append(uri.getRawQuery());
+    }
+    if (uri.getRawFragment() != null) {
+      local.append('#').append(uri.getRawFragment());
+    }
+    return local.toString();
+  }
 }
@@ -0,0 +1,84 @@
+package org.tillerino.ppaddict.server.auth;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.Serializable;
+
+import javax.annotation.CheckForNull;
+import javax.annotation.Nonnull;
+
+import org.scribe.model.Token;
+
+/**
+ * What {@link AuthLeaveService} needs to remember for {@link AuthArriveService}. This is kept in a
+ * signed cookie, so the secret of the request token is visible to the user who requested it, but
+ * can't be changed.
+ *
+ * @author Tillerino
+ */
+public class AuthState implements Serializable {
+  private static final long serialVersionUID = 1L;
+
+  /**
+   * how long the user has to log in with the authenticator
+   */
+  static final long TIMEOUT = 10 * 60 * 1000;
+
+  /**
+   * local path, see {@link AuthLeaveService#localPath(String)}
+   */
+  @Nonnull
+  final String returnTo;
+  @Nonnull
+  final String serviceKey;
+  /**
+   * only for OAuth 1.0a
+   */
+  @CheckForNull
+  final Token requestToken;
+  final long expires;
+
+  AuthState(@Nonnull String returnTo, @Nonnull String serviceKey,
+      @CheckForNull Token requestToken, long expires) {
+    this.returnTo = returnTo;
+    this.serviceKey = serviceKey;
+    this.requestToken = requestToken;
+    this.expires = expires;
+  }
+
+  @Nonnull
+  byte[] toBytes() {
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    try (DataOutputStream out = new DataOutputStream(bytes)) {
+      out.writeUTF(returnTo);
+      out.writeUTF(serviceKey);
+      out.writeBoolean(requestToken != null);
+      if (requestToken != null) {
+        out.writeUTF(requestToken.getToken());
+        out.writeUTF(requestToken.getSecret());
+      }
+      out.writeLong(expires);
+    } catch (IOException e) {
+      throw new IllegalStateException(e);
+    }
+    return bytes.toByteArray();
+  }
+
+  /**
+   * @return null if the bytes are not from {@link #toBytes()}
+   */
+  @CheckForNull
+  static AuthState fromBytes(@Nonnull byte[] bytes) {
+    try (DataInputStream in = new DataInputStream(new ByteArrayInputStream(bytes))) {
+      String returnTo = in.readUTF();
+      String serviceKey = in.readUTF();
+      Token requestToken = in.readBoolean() ? new Token(in.readUTF(), in.readUTF()) : null;
+      return new AuthState(returnTo, serviceKey, requestToken, in.readLong());
+    } catch (IOException e) {
+      return null;
+    }
+  }
+}
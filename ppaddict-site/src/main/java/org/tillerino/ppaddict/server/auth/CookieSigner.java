@@ -0,0 +1,206 @@
+package org.tillerino.ppaddict.server.auth;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.util.Base64;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import javax.annotation.CheckForNull;
+import javax.annotation.Nonnull;
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+import javax.inject.Named;
+import javax.inject.Singleton;
+
+/**
+ * Signs cookie values with HMAC-SHA256 so that they can be trusted without asking the backend. A
+ * signed value looks like "v1.keyId.payload.mac", where payload and mac are base64url. The mac also
+ * covers a purpose, which isn't part of the value, so that a value signed for one cookie is not
+ * accepted for another. Keys are configured as a list, see {@link #setKeys(String)}: the first key
+ * signs, all of them verify. To rotate, put a new key in front and drop the old one after the
+ * cookies signed with it have expired.
+ *
+ * <p>
+ * Signed cookies can't be revoked; logging out only deletes the cookie in the browser.
+ *
+ * @author Tillerino
+ */
+@Singleton
+public class CookieSigner {
+  static final String PREFIX = "v1.";
+  static final String ALGORITHM = "HmacSHA256";
+
+  /**
+   * purpose of the login cookie, see {@link #signCredentials(Credentials)}
+   */
+  public static final String CREDENTIALS = "cred";
+
+  static class Key {
+    @Nonnull
+    final String id;
+    @Nonnull
+    final SecretKeySpec secret;
+
+    final ThreadLocal<Mac> mac = new ThreadLocal<Mac>() {
+      @Override
+      protected Mac initialValue() {
+        try {
+          Mac mac = Mac.getInstance(ALGORITHM);
+          mac.init(secret);
+          return mac;
+        } catch (GeneralSecurityException e) {
+          throw new IllegalStateException(e);
+        }
+      }
+    };
+
+    Key(@Nonnull String id, @Nonnull byte[] secret) {
+      this.id = id;
+      this.secret = new SecretKeySpec(secret, ALGORITHM);
+    }
+
+    byte[] mac(String purpose, String signed) {
+      Mac mac = this.mac.get();
+      mac.update(purpose.getBytes(StandardCharsets.US_ASCII));
+      mac.update((byte) 0);
+      return mac.doFinal(signed.getBytes(StandardCharsets.US_ASCII));
+    }
+  }
+
+  /**
+   * by {@link Key#id}; the first one signs
+   */
+  private Map<String, Key> keys = new LinkedHashMap<>();
+
+  /**
+   * @param keys comma-separated "id:secret", where id is alphanumeric and secret is base64 and
+   *        should be at least 32 bytes. Without keys, nothing is signed.
+   */
+  @com.google.inject.Inject(optional = true)
+  public void setKeys(@Named("ppaddict.auth.cookieKeys") String keys) {
+    Map<String, Key> parsed = new LinkedHashMap<>();
+    for (String entry : keys.split(",")) {
+      entry = entry.trim();
+      if (entry.isEmpty()) {
+        continue;
+      }
+      int colon = entry.indexOf(':');
+      if (colon <= 0 || !entry.substring(0, colon).matches("[a-zA-Z0-9]+")) {
+        throw new IllegalArgumentException("cookie keys must look like id:secret");
+      }
+      String id = entry.substring(0, colon);
+      byte[] secret = Base64.getDecoder().decode(entry.substring(colon + 1));
+      if (secret.length == 0 || parsed.put(id, new Key(id, secret)) != null) {
+        throw new IllegalArgumentException("empty or duplicate cookie key " + id);
+      }
+    }
+    this.keys = parsed;
+  }
+
+  /**
+   * @return true if {@link #sign(String, byte[])} can be used
+   */
+  public boolean isEnabled() {
+    return !keys.isEmpty();
+  }
+
+  /**
+   * @return true if the value has the format of a signed value. Doesn't mean that it's valid.
+   */
+  public static boolean isSigned(@Nonnull String value) {
+    return value.startsWith(PREFIX);
+  }
+
+  /**
+   * @param purpose a short ASCII label for what the value is used for; verify with the same one
+   */
+  @Nonnull
+  public String sign(@Nonnull String purpose, @Nonnull byte[] payload) {
+    if (keys.isEmpty()) {
+      throw new IllegalStateException("no cookie keys configured");
+    }
+    Key key = keys.values().iterator().next();
+    String signed =
+        PREFIX + key.id + "." + Base64.getUrlEncoder().withoutPadding().encodeToString(payload);
+    return signed + "."
+        + Base64.getUrlEncoder().withoutPadding().encodeToString(key.mac(purpose, signed));
+  }
+
+  /**
+   * @param purpose see {@link #sign(String, byte[])}
+   * @return the payload; null if the value was not signed with one of the keys for this purpose
+   */
+  @CheckForNull
+  public byte[] verify(@Nonnull String purpose, @Nonnull String value) {
+    if (!isSigned(value)) {
+      return null;
+    }
+    int keyEnd = value.indexOf('.', PREFIX.length());
+    int payloadEnd = value.lastIndexOf('.');
+    if (keyEnd < 0 || payloadEnd <= keyEnd) {
+      return null;
+    }
+    Key key = keys.get(value.substring(PREFIX.length(), keyEnd));
+    if (key == null) {
+      return null;
+    }
+    try {
+      byte[] mac = Base64.getUrlDecoder().decode(value.substring(payloadEnd + 1));
+      if (!MessageDigest.isEqual(mac, key.mac(purpose, value.substring(0, payloadEnd)))) {
+        return null;
+      }
+      return Base64.getUrlDecoder().decode(value.substring(keyEnd + 1, payloadEnd));
+    } catch (IllegalArgumentException e) {
+      // not base64
+      return null;
+    }
+  }
+
+  /**
+   * @return a signed value containing the identifier, display name and expiry
+   */
+  @Nonnull
+  public String signCredentials(@Nonnull Credentials credentials) {
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    try (DataOutputStream out = new DataOutputStream(bytes)) {
+      out.writeUTF(credentials.identifier);
+      out.writeBoolean(credentials.displayName != null);
+      if (credentials.displayName != null) {
+        out.writeUTF(credentials.displayName);
+      }
+      out.writeLong(credentials.expires);
+    } catch (IOException e) {
+      throw new IllegalStateException(e);
+    }
+    return sign(CREDENTIALS, bytes.toByteArray());
+  }
+
+  /**
+   * @return null if the value is not validly signed or expired
+   */
+  @CheckForNull
+  public Credentials verifyCredentials(@Nonnull String value) {
+    byte[] payload = verify(CREDENTIALS, value);
+    if (payload == null) {
+      return null;
+    }
+    try (DataInputStream in = new DataInputStream(new ByteArrayInputStream(payload))) {
+      Credentials credentials = new Credentials(in.readUTF(), null);
+      if (in.readBoolean()) {
+        credentials.displayName = in.readUTF();
+      }
+      credentials.expires = in.readLong();
+      return credentials.expires > System.currentTimeMillis() ? credentials : null;
+    } catch (IOException e) {
+      // signed by us, so this would be a different format
+      return null;
+    }
+  }
+}
@@ -0,0 +1,661 @@
+package org.tillerino.ppaddict.server.catalog;
+
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.Set;
+
+import javax.annotation.CheckForNull;
+import javax.annotation.Nonnull;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.tillerino.osuApiModel.OsuApiBeatmap;
+import org.tillerino.ppaddict.server.PpaddictBackend;
+import org.tillerino.ppaddict.server.PpaddictBackend.BeatmapData;
+import org.tillerino.ppaddict.server.catalog.ModTransforms.Attribute;
+import org.tillerino.ppaddict.shared.BeatmapRangeRequest.Sort;
+import org.tillerino.ppaddict.shared.Settings;
+
+import tillerino.tillerinobot.BeatmapMeta.PercentageEstimates;
+import tillerino.tillerinobot.UserDataManager.UserData.BeatmapWithMods;
+
+/**
+ * Columnar, read-only copy of {@link PpaddictBackend#getBeatmaps()}. The estimates are evaluated
+ * once when the catalog is built, so that queries run over primitive arrays instead of calling into
+ * {@link OsuApiBeatmap} and {@link PercentageEstimates} for every row. Attributes which mods change
+ * by a fixed rule are stored once per beatmap and derived for each row, see {@link ModColumn}. For
+ * each {@link Sort} key there is a row permutation, which is built once per catalog version, and
+ * each filterable column has a {@link BucketIndex}. Text searches are narrowed down by a
+ * {@link TrigramIndex} over the lower case long titles.
+ *
+ * <p>
+ * A catalog can be {@link #moveOffHeap() moved off-heap} before it is published: the strings go
+ * into direct buffers, which leaves the garbage collector with a few large objects per column
+ * instead of a String per row. The other columns are primitive arrays anyway.
+ *
+ * @author Tillerino
+ */
+public class BeatmapCatalog {
+  static Logger log = LoggerFactory.getLogger(BeatmapCatalog.class);
+
+  final long version;
+
+  final int size;
+
+  /**
+   * the backend's data and keys of the rows. Both are null if the catalog was loaded from a
+   * {@link CatalogSnapshot}.
+   */
+  final BeatmapData[] data;
+  final BeatmapWithMods[] keys;
+
+  final int[] beatmapId;
+  final long[] mods;
+  /**
+   * {@link #key(int, long)} to row
+   */
+  final LongIntMap rows;
+
+  final int[] setId;
+  /**
+   * each string column has its own dictionary, see {@link StringColumn}
+   */
+  final StringColumn artist;
+  final StringColumn title;
+  /**
+   * the difficulty's name, see {@link OsuApiBeatmap#getVersion()}
+   */
+  final StringColumn versionName;
+
+  /**
+   * "artist - title [version]" in lower case, which is what the text search looks at
+   */
+  final StringColumn longTitle;
+  TrigramIndex longTitleIndex;
+
+  /**
+   * each row's index into the base values of the {@link ModColumn}s
+   */
+  final int[] beatmap;
+  int beatmapCount = 0;
+  /**
+   * beatmap id to index into the base values; null once all rows are filled
+   */
+  @CheckForNull
+  Map<Integer, Integer> beatmapIndexes;
+
+  final ModColumn approachRate;
+  final ModColumn overallDifficulty;
+  final ModColumn circleSize;
+  final ModColumn bpm;
+  final ModColumn length;
+
+  /**
+   * NaN if the estimates don't know the star difficulty
+   */
+  final double[] starDiff;
+  /**
+   * the star difficulty which is shown in the table: the beatmap's own for nomod. NaN if unknown.
+   */
+  final double[] displayStarDiff;
+
+  /**
+   * pp for {@link Settings#DEFAULT_SETTINGS}' low accuracy
+   */
+  final double[] expectedPP;
+  /**
+   * pp for {@link Settings#DEFAULT_SETTINGS}' high accuracy
+   */
+  final double[] perfectPP;
+
+  /**
+   * pp for other accuracies, see {@link #getPP(int, double)}
+   */
+  final PPGrid ppGrid;
+  /**
+   * if true, pp for other accuracies are not interpolated
+   */
+  final boolean exactPP;
+
+  /**
+   * see {@link #moveOffHeap()}
+   */
+  boolean offHeap = false;
+
+  /**
+   * true if rows may be missing their {@link #getData(int) data}, so that
+   * {@link #getPP(int, double)} interpolates from the grid: for catalogs from a
+   * {@link CatalogSnapshot}.
+   */
+  boolean missingData = false;
+
+  /**
+   * number of values which {@link #fill(int, BeatmapWithMods, BeatmapData)} couldn't derive, see
+   * {@link ModColumn}
+   */
+  private int modExceptions = 0;
+
+  /**
+   * 0, 1, ..., size - 1
+   */
+  int[] catalogOrder;
+
+  /*
+   * row permutations sorted ascending by the respective key, see getSortIndex
+   */
+  int[] expectedPPIndex;
+  int[] perfectPPIndex;
+  int[] bpmIndex;
+  int[] lengthIndex;
+  /**
+   * does not contain rows without star diff
+   */
+  int[] starDiffIndex;
+  /*
+   * not for sorting, but kept for updating the bucket indexes
+   */
+  int[] approachRateIndex;
+  int[] overallDifficultyIndex;
+  int[] circleSizeIndex;
+
+  /*
+   * range indexes for the filterable columns, see RangeFilter
+   */
+  BucketIndex approachRateBuckets;
+  BucketIndex overallDifficultyBuckets;
+  BucketIndex circleSizeBuckets;
+  BucketIndex bpmBuckets;
+  BucketIndex lengthBuckets;
+  BucketIndex starDiffBuckets;
+  BucketIndex expectedPPBuckets;
+  BucketIndex perfectPPBuckets;
+
+  /**
+   * for each mod bit, the rows whose mods contain it as bitset words like
+   * {@link java.util.BitSet#toLongArray()}, but always (size + 63) / 64 long. null for bits which
+   * no row has.
+   */
+  long[][] modBits;
+
+  BeatmapCatalog(long version, int size, boolean exactPP, boolean coarsePP) {
+    this.version = version;
+    this.size = size;
+    this.exactPP = exactPP;
+
+    data = new BeatmapData[size];
+    keys = new BeatmapWithMods[size];
+    beatmapId = new int[size];
+    mods = new long[size];
+    rows = new LongIntMap(size);
+    setId = new int[size];
+    artist = new StringColumn(size);
+    title = new StringColumn(size);
+    versionName = new StringColumn(size);
+    longTitle = new StringColumn(size);
+    beatmap = new int[size];
+    beatmapIndexes = new HashMap<>();
+    approachRate = new ModColumn(Attribute.APPROACH_RATE, beatmap, mods, size);
+    overallDifficulty = new ModColumn(Attribute.OVERALL_DIFFICULTY, beatmap, mods, size);
+    circleSize = new ModColumn(Attribute.CIRCLE_SIZE, beatmap, mods, size);
+    bpm = new ModColumn(Attribute.BPM, beatmap, mods, size);
+    length = new ModColumn(Attribute.LENGTH, beatmap, mods, size);
+    starDiff = new double[size];
+    displayStarDiff = new double[size];
+    expectedPP = new double[size];
+    perfectPP = new double[size];
+    ppGrid = new PPGrid(size, coarsePP);
+  }
+
+  @Nonnull
+  public static BeatmapCatalog build(@Nonnull Map<BeatmapWithMods, BeatmapData> beatmaps,
+      long version) {
+    return build(beatmaps, version, false, false);
+  }
+
+  /**
+   * @param exactPP if true, pp for accuracies other than the defaults are always evaluated exactly
+   *        instead of being interpolated
+   * @param coarsePP if true, the {@link PPGrid} also covers low accuracies, which a
+   *        {@link CatalogSnapshot} needs
+   */
+  @Nonnull
+  public static BeatmapCatalog build(@Nonnull Map<BeatmapWithMods, BeatmapData> beatmaps,
+      long version, boolean exactPP, boolean coarsePP) {
+    BeatmapCatalog catalog = new BeatmapCatalog(version, beatmaps.size(), exactPP, coarsePP);
+
+    int row = 0;
+    for (Entry<BeatmapWithMods, BeatmapData> entry : beatmaps.entrySet()) {
+      catalog.fill(row++, entry.getKey(), entry.getValue());
+    }
+    catalog.warnModExceptions();
+
+    catalog.finishBeatmaps();
+    catalog.buildSortIndexes();
+    catalog.buildBucketIndexes();
+    catalog.buildModBits();
+    catalog.finishStrings();
+
+    return catalog;
+  }
+
+  /**
+   * Creates the next version of this catalog. Rows which are neither removed nor replaced are
+   * copied over instead of being evaluated again and the sort indexes are merged instead of being
+   * sorted again. The range and text indexes are rebuilt from the columns. Rows are found by their
+   * keys, so this doesn't work for catalogs loaded from a {@link CatalogSnapshot}.
+   *
+   * <p>
+   * Other variants of an upserted beatmap share its {@link ModColumn} base values, so they take on
+   * the upsert's attributes. They are copied, but sorted in like new rows.
+   *
+   * @param upserts new or changed beatmaps
+   * @param removals beatmaps which are gone. Unknown ones are ignored.
+   */
+  @Nonnull
+  public BeatmapCatalog apply(@Nonnull Map<BeatmapWithMods, BeatmapData> upserts,
+      @Nonnull Collection<BeatmapWithMods> removals, long version) {
+    // one pass over the keys instead of a map from key to row in every catalog
+    HashSet<BeatmapWithMods> replaced = new HashSet<>(removals);
+    replaced.addAll(upserts.keySet());
+    boolean[] dropped = new boolean[size];
+    for (int row = 0; row < size; row++) {
+      dropped[row] = replaced.contains(keys[row]);
+    }
+
+    Set<Integer> upsertedBeatmaps = new HashSet<>();
+    for (BeatmapData entry : upserts.values()) {
+      upsertedBeatmaps.add(entry.getBeatmap().getBeatmapId());
+    }
+    boolean[] moved = new boolean[size];
+    int[] remap = new int[size];
+    int kept = 0;
+    int movedCount = 0;
+    for (int row = 0; row < size; row++) {
+      if (dropped[row]) {
+        remap[row] = -1;
+      } else if (upsertedBeatmaps.contains(beatmapId[row])) {
+        // not merged, see above
+        moved[row] = true;
+        remap[row] = -1;
+        movedCount++;
+      } else {
+        remap[row] = kept++;
+      }
+    }
+
+    BeatmapCatalog next =
+        new BeatmapCatalog(version, kept + movedCount + upserts.size(), exactPP, ppGrid.coarse);
+    next.missingData = missingData;
+    int row = kept;
+    for (int from = 0; from < size; from++) {
+      if (remap[from] >= 0) {
+        next.copy(this, from, remap[from]);
+      } else if (moved[from]) {
+        next.copy(this, from, row++);
+      }
+    }
+    for (Entry<BeatmapWithMods, BeatmapData> entry : upserts.entrySet()) {
+      next.fill(row++, entry.getKey(), entry.getValue());
+    }
+    next.warnModExceptions();
+    next.finishBeatmaps();
+
+    next.catalogOrder = identity(next.size);
+    next.approachRateIndex =
+        Sorting.merge(approachRateIndex, remap, next.approachRate.materialize(next.size), kept,
+            next.size, false);
+    next.overallDifficultyIndex =
+        Sorting.merge(overallDifficultyIndex, remap, next.overallDifficulty.materialize(next.size),
+            kept, next.size, false);
+    next.circleSizeIndex =
+        Sorting.merge(circleSizeIndex, remap, next.circleSize.materialize(next.size), kept,
+            next.size, false);
+    next.expectedPPIndex =
+        Sorting.merge(expectedPPIndex, remap, next.expectedPP, kept, next.size, false);
+    next.perfectPPIndex =
+        Sorting.merge(perfectPPIndex, remap, next.perfectPP, kept, next.size, false);
+    next.bpmIndex =
+        Sorting.merge(bpmIndex, remap, next.bpm.materialize(next.size), kept, next.size, false);
+    next.lengthIndex =
+        Sorting.merge(lengthIndex, remap, next.length.materialize(next.size), kept, next.size,
+            false);
+    next.starDiffIndex =
+        Sorting.merge(starDiffIndex, remap, next.starDiff, kept, next.size, true);
+
+    next.buildBucketIndexes();
+    next.buildModBits();
+    next.finishStrings();
+    if (offHeap) {
+      next.moveOffHeap();
+    }
+
+    return next;
+  }
+
+  /**
+   * evaluates everything about a beatmap
+   */
+  private void fill(int row, @Nonnull BeatmapWithMods key, @Nonnull BeatmapData entry) {
+    OsuApiBeatmap apiBeatmap = entry.getBeatmap();
+    PercentageEstimates estimates = entry.getEstimates();
+    long mods = estimates.getMods();
+
+    this.keys[row] = key;
+    data[row] = entry;
+    beatmapId[row] = apiBeatmap.getBeatmapId();
+    this.mods[row] = mods;
+    rows.put(key(apiBeatmap.getBeatmapId(), mods), row);
+    setId[row] = apiBeatmap.getSetId();
+    artist.set(row, apiBeatmap.getArtist());
+    title.set(row, apiBeatmap.getTitle());
+    versionName.set(row, apiBeatmap.getVersion());
+    longTitle.set(row, longTitle(artist.get(row), title.get(row), versionName.get(row)));
+    int beatmap = beatmapIndex(row);
+    for (ModColumn column : new ModColumn[] {approachRate, overallDifficulty, circleSize, bpm,
+        length}) {
+      if (!column.set(row, beatmap, apiBeatmap, mods)) {
+        modExceptions++;
+      }
+    }
+    Double starDiff = estimates.getStarDiff();
+    this.starDiff[row] = starDiff != null ? starDiff : Double.NaN;
+    displayStarDiff[row] = mods == 0 ? apiBeatmap.getStarDifficulty() : this.starDiff[row];
+    expectedPP[row] = estimates.getPPForAcc(Settings.DEFAULT_SETTINGS.getLowAccuracy() / 100d);
+    perfectPP[row] = estimates.getPPForAcc(Settings.DEFAULT_SETTINGS.getHighAccuracy() / 100d);
+    ppGrid.set(row, estimates);
+  }
+
+  private void warnModExceptions() {
+    if (modExceptions > 0) {
+      log.warn("{} mod-dependent values differ from OsuApiBeatmap's; the library's values are used",
+          modExceptions);
+    }
+  }
+
+  /**
+   * copies a row of another catalog
+   */
+  private void copy(@Nonnull BeatmapCatalog from, int fromRow, int row) {
+    keys[row] = from.keys[fromRow];
+    data[row] = from.data[fromRow];
+    beatmapId[row] = from.beatmapId[fromRow];
+    mods[row] = from.mods[fromRow];
+    rows.put(key(beatmapId[row], mods[row]), row);
+    setId[row] = from.setId[fromRow];
+    artist.set(row, from.artist.get(fromRow));
+    title.set(row, from.title.get(fromRow));
+    versionName.set(row, from.versionName.get(fromRow));
+    longTitle.set(row, from.longTitle.get(fromRow));
+    int beatmap = beatmapIndex(row);
+    int fromBeatmap = from.beatmap[fromRow];
+    approachRate.copy(from.approachRate, fromRow, fromBeatmap, row, beatmap);
+    overallDifficulty.copy(from.overallDifficulty, fromRow, fromBeatmap, row, beatmap);
+    circleSize.copy(from.circleSize, fromRow, fromBeatmap, row, beatmap);
+    bpm.copy(from.bpm, fromRow, fromBeatmap, row, beatmap);
+    length.copy(from.length, fromRow, fromBeatmap, row, beatmap);
+    starDiff[row] = from.starDiff[fromRow];
+    displayStarDiff[row] = from.displayStarDiff[fromRow];
+    expectedPP[row] = from.expectedPP[fromRow];
+    perfectPP[row] = from.perfectPP[fromRow];
+    ppGrid.copy(from.ppGrid, fromRow, row);
+  }
+
+  /**
+   * Builds the text index and seals the string columns once all rows are filled.
+   */
+  void finishStrings() {
+    longTitleIndex = TrigramIndex.build(longTitle, size);
+    artist.seal();
+    title.seal();
+    versionName.seal();
+    longTitle.seal();
+  }
+
+  /**
+   * Moves the strings into direct buffers. This must happen before the catalog is shared with other
+   * threads; catalogs which are {@link #apply(Map, Collection, long) derived} from this one are
+   * moved off-heap as well.
+   */
+  void moveOffHeap() {
+    artist.moveOffHeap();
+    title.moveOffHeap();
+    versionName.moveOffHeap();
+    longTitle.moveOffHeap();
+    offHeap = true;
+  }
+
+  /**
+   * Assigns the row's beatmap its index into the base values of the {@link ModColumn}s. Rows of
+   * the same beatmap share the index. The beatmap id must already be set.
+   */
+  private int beatmapIndex(int row) {
+    Integer index = beatmapIndexes.get(beatmapId[row]);
+    if (index == null) {
+      index = beatmapCount++;
+      beatmapIndexes.put(beatmapId[row], index);
+    }
+    beatmap[row] = index;
+    return index;
+  }
+
+  /**
+   * drops what is only needed while the rows are filled
+   */
+  void finishBeatmaps() {
+    beatmapIndexes = null;
+    approachRate.trim(beatmapCount);
+    overallDifficulty.trim(beatmapCount);
+    circleSize.trim(beatmapCount);
+    bpm.trim(beatmapCount);
+    length.trim(beatmapCount);
+  }
+
+  static String longTitle(String artist, String title, String versionName) {
+    return (artist + " - " + title + " [" + versionName + "]").toLowerCase();
+  }
+
+  static int[] identity(int size) {
+    int[] identity = new int[size];
+    for (int row = 0; row < size; row++) {
+      identity[row] = row;
+    }
+    return identity;
+  }
+
+  void buildSortIndexes() {
+    catalogOrder = identity(size);
+    approachRateIndex = Sorting.permutation(approachRate.materialize(size), size);
+    overallDifficultyIndex = Sorting.permutation(overallDifficulty.materialize(size), size);
+    circleSizeIndex = Sorting.permutation(circleSize.materialize(size), size);
+    expectedPPIndex = Sorting.permutation(expectedPP, size);
+    perfectPPIndex = Sorting.permutation(perfectPP, size);
+    bpmIndex = Sorting.permutation(bpm.materialize(size), size);
+    lengthIndex = Sorting.permutation(length.materialize(size), size);
+
+    int[] withStarDiff = new int[size];
+    double[] sortKeys = new double[size];
+    int count = 0;
+    for (int row = 0; row < size; row++) {
+      if (!Double.isNaN(starDiff[row])) {
+        withStarDiff[count] = row;
+        sortKeys[count++] = starDiff[row];
+      }
+    }
+    Sorting.sortByKey(sortKeys, withStarDiff, count);
+    starDiffIndex = Arrays.copyOf(withStarDiff, count);
+  }
+
+  void buildBucketIndexes() {
+    approachRateBuckets = BucketIndex.build(approachRate, size, approachRateIndex);
+    overallDifficultyBuckets = BucketIndex.build(overallDifficulty, size, overallDifficultyIndex);
+    circleSizeBuckets = BucketIndex.build(circleSize, size, circleSizeIndex);
+    bpmBuckets = BucketIndex.build(bpm, size, bpmIndex);
+    lengthBuckets = BucketIndex.build(length, size, lengthIndex);
+    starDiffBuckets = BucketIndex.build(starDiff, size, starDiffIndex);
+    expectedPPBuckets = BucketIndex.build(expectedPP, size, expectedPPIndex);
+    perfectPPBuckets = BucketIndex.build(perfectPP, size, perfectPPIndex);
+  }
+
+  void buildModBits() {
+    modBits = new long[64][];
+    int words = (size + 63) >>> 6;
+    for (int row = 0; row < size; row++) {
+      for (long bits = mods[row]; bits != 0; bits &= bits - 1) {
+        int bit = Long.numberOfTrailingZeros(bits);
+        if (modBits[bit] == null) {
+          modBits[bit] = new long[words];
+        }
+        modBits[bit][row >>> 6] |= 1L << row;
+      }
+    }
+  }
+
+  /**
+   * @return the rows sorted ascending by the given key. null if there is no index for the key with
+   *         the given settings, i.e. pp for accuracies other than the default.
+   */
+  @CheckForNull
+  public int[] getSortIndex(@Nonnull Sort sortBy, @Nonnull Settings settings) {
+    switch (sortBy) {
+      case EXPECTED:
+        return settings.getLowAccuracy() == Settings.DEFAULT_SETTINGS.getLowAccuracy()
+            ? expectedPPIndex : null;
+      case PERFECT:
+        return settings.getHighAccuracy() == Settings.DEFAULT_SETTINGS.getHighAccuracy()
+            ? perfectPPIndex : null;
+      case BPM:
+        return bpmIndex;
+      case LENGTH:
+        return lengthIndex;
+      case STAR_DIFF:
+        return starDiffIndex;
+      default:
+        return null;
+    }
+  }
+
+  /**
+   * Packs beatmap id and mods into a single key. Mods only use the lower 32 bits.
+   */
+  public static long key(int beatmapId, long mods) {
+    return ((long) beatmapId << 32) | (mods & 0xffffffffL);
+  }
+
+  /**
+   * @param key see {@link #key(int, long)}
+   * @return -1 if the catalog doesn't contain the beatmap
+   */
+  public int rowOf(long key) {
+    return rows.get(key);
+  }
+
+  public long getVersion() {
+    return version;
+  }
+
+  public int size() {
+    return size;
+  }
+
+  /**
+   * @return null if the catalog was loaded from a {@link CatalogSnapshot}
+   */
+  @CheckForNull
+  public BeatmapData getData(int row) {
+    return data[row];
+  }
+
+  public int getBeatmapId(int row) {
+    return beatmapId[row];
+  }
+
+  public long getMods(int row) {
+    return mods[row];
+  }
+
+  public int getSetId(int row) {
+    return setId[row];
+  }
+
+  public String getArtist(int row) {
+    return artist.get(row);
+  }
+
+  public String getTitle(int row) {
+    return title.get(row);
+  }
+
+  public String getVersionName(int row) {
+    return versionName.get(row);
+  }
+
+  public double getApproachRate(int row) {
+    return approachRate.get(row);
+  }
+
+  public double getOverallDifficulty(int row) {
+    return overallDifficulty.get(row);
+  }
+
+  public double getCircleSize(int row) {
+    return circleSize.get(row);
+  }
+
+  public double getBpm(int row) {
+    return bpm.get(row);
+  }
+
+  public double getLength(int row) {
+    return length.get(row);
+  }
+
+  /**
+   * @return the star difficulty which is filtered and sorted by; NaN if unknown
+   */
+  public double getStarDiff(int row) {
+    return starDiff[row];
+  }
+
+  /**
+   * @return the star difficulty to show; null if unknown
+   */
+  @CheckForNull
+  public Double getDisplayStarDiff(int row) {
+    return Double.isNaN(displayStarDiff[row]) ? null : displayStarDiff[row];
+  }
+
+  /**
+   * @param accuracy in percent, like {@link Settings#getLowAccuracy()}
+   * @return exact for the default accuracies, interpolated from the fine part of the
+   *         {@link PPGrid} for other accuracies unless the catalog was built with exact pp, and
+   *         exact for accuracies below that. If the catalog was loaded from a
+   *         {@link CatalogSnapshot}, the grid is all there is, so all accuracies are interpolated
+   *         from the grid.
+   */
+  public double getPP(int row, double accuracy) {
+    if (accuracy == Settings.DEFAULT_SETTINGS.getLowAccuracy()) {
+      return expectedPP[row];
+    }
+    if (accuracy == Settings.DEFAULT_SETTINGS.getHighAccuracy()) {
+      return perfectPP[row];
+    }
+    BeatmapData entry = data[row];
+    if (entry == null || (!exactPP && PPGrid.isFine(accuracy))) {
+      return ppGrid.get(row, accuracy);
+    }
+    return entry.getEstimates().getPPForAcc(accuracy / 100d);
+  }
+
+  /**
+   * @return true if {@link #getPP(int, double)} doesn't have to evaluate the estimates
+   */
+  public boolean isPPPrecomputed(double accuracy) {
+    return accuracy == Settings.DEFAULT_SETTINGS.getLowAccuracy()
+        || accuracy == Settings.DEFAULT_SETTINGS.getHighAccuracy() || missingData
+        || (!exactPP && PPGrid.isFine(accuracy));
+  }
+}
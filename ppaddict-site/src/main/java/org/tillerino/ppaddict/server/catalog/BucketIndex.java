@@ -0,0 +1,152 @@
+package org.tillerino.ppaddict.server.catalog;
+
+import java.util.Arrays;
+
+import javax.annotation.Nonnull;
+
+/**
+ * Splits the values of a catalog column into buckets of roughly the same number of rows. Each
+ * bucket holds its rows in ascending order, so a range only has to check the exact values of the
+ * rows in the two buckets at its ends; the buckets in between are taken as a whole. Narrow ranges
+ * never touch most of the rows.
+ *
+ * @author Tillerino
+ */
+public class BucketIndex {
+  static final int BUCKETS = 64;
+
+  private final DoubleColumn column;
+  private final int size;
+
+  /**
+   * smallest and largest value in each bucket. Equal values are always in the same bucket.
+   */
+  private final double[] lower;
+  private final double[] upper;
+  private final int[][] rows;
+
+  /**
+   * rows where the column is NaN
+   */
+  private final int[] unknown;
+
+  private BucketIndex(DoubleColumn column, int size, double[] lower, double[] upper, int[][] rows,
+      int[] unknown) {
+    this.column = column;
+    this.size = size;
+    this.lower = lower;
+    this.upper = upper;
+    this.rows = rows;
+    this.unknown = unknown;
+  }
+
+  /**
+   * @param sorted the rows sorted by the column, NaN last, see {@link Sorting#permutation(double[],
+   *        int)}. The rows with NaN may also be missing.
+   */
+  @Nonnull
+  public static BucketIndex build(@Nonnull final double[] column, int size,
+      @Nonnull int[] sorted) {
+    return build(new DoubleColumn() {
+      @Override
+      public double get(int row) {
+        return column[row];
+      }
+    }, size, sorted);
+  }
+
+  /**
+   * @param sorted see {@link #build(double[], int, int[])}
+   */
+  @Nonnull
+  public static BucketIndex build(@Nonnull DoubleColumn column, int size, @Nonnull int[] sorted) {
+    int known = 0;
+    while (known < sorted.length && !Double.isNaN(column.get(sorted[known]))) {
+      known++;
+    }
+
+    IntList unknown = new IntList();
+    for (int row = 0; row < size; row++) {
+      if (Double.isNaN(column.get(row))) {
+        unknown.add(row);
+      }
+    }
+
+    int target = Math.max(1, (known + BUCKETS - 1) / BUCKETS);
+    double[] lower = new double[BUCKETS];
+    double[] upper = new double[BUCKETS];
+    int[][] rows = new int[BUCKETS][];
+    int buckets = 0;
+    for (int start = 0; start < known;) {
+      int end = Math.min(known, start + target);
+      // don't split runs of equal values
+      while (end < known && column.get(sorted[end]) == column.get(sorted[end - 1])) {
+        end++;
+      }
+      if (buckets == lower.length) {
+        lower = Arrays.copyOf(lower, buckets * 2);
+        upper = Arrays.copyOf(upper, buckets * 2);
+        rows = Arrays.copyOf(rows, buckets * 2);
+      }
+      lower[buckets] = column.get(sorted[start]);
+      upper[buckets] = column.get(sorted[end - 1]);
+      rows[buckets] = Arrays.copyOfRange(sorted, start, end);
+      Arrays.sort(rows[buckets]);
+      buckets++;
+      start = end;
+    }
+
+    return new BucketIndex(column, size, Arrays.copyOf(lower, buckets), Arrays.copyOf(upper,
+        buckets), Arrays.copyOf(rows, buckets), unknown.toArray());
+  }
+
+  /**
+   * @return an upper bound for the number of rows which {@link #and(long[], double, double,
+   *         double, boolean)} has to look at
+   */
+  public int estimate(double scale, double min, double max, boolean unknownMatches) {
+    int count = unknownMatches ? unknown.length : 0;
+    for (int b = 0; b < rows.length; b++) {
+      if (upper[b] * scale >= min && lower[b] * scale <= max) {
+        count += rows[b].length;
+      }
+    }
+    return count;
+  }
+
+  /**
+   * clears the bits of rows where column * scale is out of bounds
+   *
+   * @param unknownMatches if true, rows where the column is NaN are kept
+   */
+  public void and(@Nonnull long[] words, double scale, double min, double max,
+      boolean unknownMatches) {
+    long[] matches = new long[(size + 63) >>> 6];
+    for (int b = 0; b < rows.length; b++) {
+      if (upper[b] * scale < min || lower[b] * scale > max) {
+        continue;
+      }
+      int[] bucket = rows[b];
+      if (lower[b] * scale >= min && upper[b] * scale <= max) {
+        for (int row : bucket) {
+          matches[row >>> 6] |= 1L << row;
+        }
+      } else {
+        for (int row : bucket) {
+          double value = column.get(row) * scale;
+          if (value >= min && value <= max) {
+            matches[row >>> 6] |= 1L << row;
+          }
+        }
+      }
+    }
+    if (unknownMatches) {
+      for (int row : unknown) {
+        matches[row >>> 6] |= 1L << row;
+      }
+    }
+    for (int w = 0; w < words.length; w++) {
+      words[w] &= matches[w];
+    }
+  }
+}
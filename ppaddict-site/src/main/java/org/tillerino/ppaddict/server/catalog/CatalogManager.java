@@ -0,0 +1,330 @@
+package org.tillerino.ppaddict.server.catalog;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import javax.annotation.CheckForNull;
+import javax.annotation.Nonnull;
+import javax.inject.Inject;
+import javax.inject.Named;
+import javax.inject.Singleton;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.tillerino.ppaddict.server.PpaddictBackend;
+import org.tillerino.ppaddict.server.PpaddictBackend.BeatmapData;
+import org.tillerino.ppaddict.server.PpaddictBackend.BeatmapsDelta;
+import org.tillerino.ppaddict.shared.PpaddictException;
+
+import tillerino.tillerinobot.UserDataManager.UserData.BeatmapWithMods;
+
+/**
+ * Keeps the {@link BeatmapCatalog} in sync with the backend's beatmaps. The backend is polled on a
+ * background thread. Changes from {@link PpaddictBackend#getBeatmapsSince(long)} are applied to
+ * the current catalog; backends which can't tell what changed are checked for a different map from
+ * {@link PpaddictBackend#getBeatmaps()}, which is then built from scratch. A finished catalog
+ * replaces the previous one with a single volatile write, so requests never wait for a rebuild
+ * (except for the very first one) and never see a half-built catalog. Requests and cursors which
+ * still hold on to the previous catalog keep using it until they let go of it. If the backend has
+ * no beatmaps for a while, the previous catalog stays in place.
+ *
+ * <p>
+ * If a {@link #setSnapshot(String) snapshot} is configured, the catalog is written to it by the
+ * background thread: right after a full build, but after applied changes at most once per
+ * {@link #setSnapshotInterval(long) interval}, and on {@link #shutdown()}. After a restart, the
+ * first request is served from the snapshot while the backend loads its beatmaps in the
+ * background.
+ *
+ * @author Tillerino
+ */
+@Singleton
+public class CatalogManager {
+  static Logger log = LoggerFactory.getLogger(CatalogManager.class);
+
+  /**
+   * see {@link #setRefreshInterval(long)}
+   */
+  public static final long DEFAULT_REFRESH_INTERVAL = 10000;
+
+  /**
+   * see {@link #setSnapshotInterval(long)}
+   */
+  public static final long DEFAULT_SNAPSHOT_INTERVAL = 10 * 60 * 1000;
+
+  static final long SHUTDOWN_TIMEOUT = 10000;
+
+  private final PpaddictBackend backend;
+
+  /**
+   * only accessed while holding the lock on this
+   */
+  @CheckForNull
+  private Map<BeatmapWithMods, BeatmapData> source;
+  @CheckForNull
+  private volatile BeatmapCatalog catalog;
+
+  private long version = 0;
+  /**
+   * {@link BeatmapsDelta#version} of the current catalog; 0 if it was built from
+   * {@link PpaddictBackend#getBeatmaps()}
+   */
+  private long deltaVersion = 0;
+
+  private boolean exactPP = false;
+
+  private long refreshInterval = DEFAULT_REFRESH_INTERVAL;
+
+  @CheckForNull
+  private File snapshot;
+
+  private long snapshotInterval = DEFAULT_SNAPSHOT_INTERVAL;
+
+  /**
+   * the newest catalog which is not in the snapshot yet; only accessed while holding the lock on
+   * this
+   */
+  @CheckForNull
+  private BeatmapCatalog unsaved;
+  /**
+   * true if {@link #unsaved} was built from scratch; only accessed while holding the lock on this
+   */
+  private boolean unsavedBuilt = false;
+  /**
+   * only accessed while holding the lock on this
+   */
+  private long lastSnapshot = 0;
+
+  private boolean offHeap = false;
+
+  @CheckForNull
+  private ScheduledExecutorService refresher;
+
+  @Inject
+  public CatalogManager(PpaddictBackend backend) {
+    this.backend = backend;
+  }
+
+  /**
+   * @param exactPP see {@link BeatmapCatalog#build(Map, long, boolean, boolean)}
+   */
+  @com.google.inject.Inject(optional = true)
+  public void setExactPP(@Named("ppaddict.catalog.exactPP") boolean exactPP) {
+    this.exactPP = exactPP;
+  }
+
+  /**
+   * @param refreshInterval milliseconds between two checks for new beatmaps
+   */
+  @com.google.inject.Inject(optional = true)
+  public void setRefreshInterval(@Named("ppaddict.catalog.refreshInterval") long refreshInterval) {
+    this.refreshInterval = refreshInterval;
+  }
+
+  /**
+   * @param snapshot path of the {@link CatalogSnapshot} file
+   */
+  @com.google.inject.Inject(optional = true)
+  public void setSnapshot(@Named("ppaddict.catalog.snapshot") String snapshot) {
+    this.snapshot = new File(snapshot);
+  }
+
+  /**
+   * @param snapshotInterval minimum milliseconds between two snapshots of catalogs with applied
+   *        changes
+   */
+  @com.google.inject.Inject(optional = true)
+  public void setSnapshotInterval(
+      @Named("ppaddict.catalog.snapshotInterval") long snapshotInterval) {
+    this.snapshotInterval = snapshotInterval;
+  }
+
+  /**
+   * @param offHeap see {@link BeatmapCatalog#moveOffHeap()}
+   */
+  @com.google.inject.Inject(optional = true)
+  public void setOffHeap(@Named("ppaddict.catalog.offHeap") boolean offHeap) {
+    this.offHeap = offHeap;
+  }
+
+  /**
+   * @return the current catalog
+   * @throws PpaddictException if there was never a catalog because the backend doesn't have any
+   *         beatmaps yet
+   */
+  @Nonnull
+  public BeatmapCatalog getCatalog() throws PpaddictException {
+    BeatmapCatalog current = catalog;
+    if (current != null) {
+      return current;
+    }
+    if (loadSnapshot()) {
+      // the backend catches up in the background
+      startRefresher(0);
+    } else {
+      // first request: wait for the catalog instead of failing
+      refresh();
+      startRefresher(refreshInterval);
+    }
+    current = catalog;
+    if (current == null) {
+      throw new PpaddictException("The server is restarting or something.");
+    }
+    return current;
+  }
+
+  /**
+   * Builds a new catalog if the backend has new beatmaps. If the backend can tell what changed, the
+   * changes are applied to the current catalog, see {@link BeatmapCatalog#apply(Map,
+   * java.util.Collection, long)}.
+   */
+  synchronized void refresh() {
+    BeatmapCatalog current = catalog;
+    BeatmapsDelta delta = backend.getBeatmapsSince(current != null ? deltaVersion : 0);
+    if (delta != null) {
+      source = null;
+      if (current != null && deltaVersion > 0) {
+        if (!delta.upserts.isEmpty() || !delta.removals.isEmpty()) {
+          long time = System.currentTimeMillis();
+          publish(current.apply(delta.upserts, delta.removals, version + 1), time, false);
+        }
+      } else {
+        long time = System.currentTimeMillis();
+        publish(BeatmapCatalog.build(delta.upserts, version + 1, exactPP, snapshot != null), time,
+            true);
+      }
+      deltaVersion = delta.version;
+      return;
+    }
+    deltaVersion = 0;
+
+    Map<BeatmapWithMods, BeatmapData> beatmaps = backend.getBeatmaps();
+    if (beatmaps == null || (beatmaps == source && current != null)) {
+      return;
+    }
+    long time = System.currentTimeMillis();
+    publish(BeatmapCatalog.build(beatmaps, version + 1, exactPP, snapshot != null), time, true);
+    source = beatmaps;
+  }
+
+  private synchronized boolean loadSnapshot() {
+    if (catalog != null) {
+      return true;
+    }
+    if (snapshot == null || !snapshot.isFile()) {
+      return false;
+    }
+    long time = System.currentTimeMillis();
+    BeatmapCatalog loaded;
+    try {
+      loaded = CatalogSnapshot.read(snapshot, version + 1, exactPP);
+    } catch (IOException e) {
+      log.warn("could not load catalog snapshot " + snapshot, e);
+      return false;
+    }
+    if (offHeap) {
+      loaded.moveOffHeap();
+    }
+    version = loaded.version;
+    catalog = loaded;
+    lastSnapshot = System.currentTimeMillis();
+    log.debug("loaded catalog snapshot with {} entries in {} ms", loaded.size(),
+        System.currentTimeMillis() - time);
+    return true;
+  }
+
+  /**
+   * @param built true if the catalog was built from scratch
+   */
+  private void publish(BeatmapCatalog next, long startTime, boolean built) {
+    if (offHeap) {
+      next.moveOffHeap();
+    }
+    version = next.version;
+    catalog = next;
+    log.debug("built catalog version {} with {} entries in {} ms", version, next.size(),
+        System.currentTimeMillis() - startTime);
+
+    if (snapshot != null) {
+      unsaved = next;
+      unsavedBuilt |= built;
+    }
+  }
+
+  /**
+   * Writes the newest catalog to the snapshot if it is due. The catalog is immutable, so this
+   * doesn't hold the lock while writing. Only called by the refresher thread or after it stopped.
+   *
+   * @param force write even if the interval has not passed yet
+   */
+  void writeSnapshot(boolean force) {
+    BeatmapCatalog next;
+    long time = System.currentTimeMillis();
+    synchronized (this) {
+      if (unsaved == null || !force && !unsavedBuilt && time < lastSnapshot + snapshotInterval) {
+        return;
+      }
+      next = unsaved;
+      unsaved = null;
+      unsavedBuilt = false;
+      lastSnapshot = time;
+    }
+    try {
+      CatalogSnapshot.write(next, snapshot);
+      log.debug("wrote catalog snapshot in {} ms", System.currentTimeMillis() - time);
+    } catch (IOException e) {
+      log.warn("could not write catalog snapshot " + snapshot, e);
+    }
+  }
+
+  /**
+   * Stops the background thread and writes the newest catalog to the snapshot if it's not in
+   * there yet.
+   */
+  public void shutdown() {
+    ScheduledExecutorService refresher;
+    synchronized (this) {
+      refresher = this.refresher;
+    }
+    if (refresher != null) {
+      refresher.shutdown();
+      try {
+        // let a refresh in progress finish
+        refresher.awaitTermination(SHUTDOWN_TIMEOUT, TimeUnit.MILLISECONDS);
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+      }
+    }
+    writeSnapshot(true);
+  }
+
+  private synchronized void startRefresher(long initialDelay) {
+    if (refresher != null) {
+      return;
+    }
+    refresher = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+      @Override
+      public Thread newThread(Runnable r) {
+        Thread thread = new Thread(r, "catalog refresher");
+        thread.setDaemon(true);
+        return thread;
+      }
+    });
+    refresher.scheduleWithFixedDelay(new Runnable() {
+      @Override
+      public void run() {
+        try {
+          refresh();
+        } catch (RuntimeException e) {
+          // keep the old catalog
+          log.error("refreshing the catalog failed", e);
+        }
+        writeSnapshot(false);
+      }
+    }, initialDelay, refreshInterval, TimeUnit.MILLISECONDS);
+  }
+}
@@ -0,0 +1,454 @@
+package org.tillerino.ppaddict.server.catalog;
+
+import java.util.BitSet;
+
+import javax.annotation.CheckForNull;
+import javax.annotation.Nonnull;
+
+import org.tillerino.ppaddict.server.PersistentLongMap;
+import org.tillerino.ppaddict.server.PersistentUserData.Comment;
+import org.tillerino.ppaddict.server.ServerUserData;
+import org.tillerino.ppaddict.shared.BeatmapRangeRequest;
+import org.tillerino.ppaddict.shared.BeatmapRangeRequest.Sort;
+import org.tillerino.ppaddict.shared.Settings;
+
+/**
+ * A {@link BeatmapRangeRequest} evaluated against a {@link BeatmapCatalog}.
+ *
+ * @author Tillerino
+ */
+public class CatalogQuery {
+  /**
+   * The rows of the requested window and the total number of matches.
+   */
+  public static class Page {
+    @Nonnull
+    public final int[] rows;
+    public final int available;
+
+    public Page(@Nonnull int[] rows, int available) {
+      this.rows = rows;
+      this.available = available;
+    }
+  }
+
+  /**
+   * If the searches leave less than one in this many rows, the range filter is evaluated for just
+   * those rows instead of the entire catalog.
+   */
+  static final int SELECT_RATIO = 16;
+
+  final BeatmapCatalog catalog;
+  final BeatmapRangeRequest request;
+  final Settings settings;
+
+  @CheckForNull
+  final ServerUserData userData;
+
+  @CheckForNull
+  final String textSearchNeedle;
+  /**
+   * rows which contain all trigrams of the text search needle. null if not narrowed down.
+   */
+  @CheckForNull
+  final BitSet textCandidates;
+  @CheckForNull
+  final String commentSearchNeedle;
+  /**
+   * rows which the user commented on (matching the comment search needle). null if there is no
+   * comment search.
+   */
+  @CheckForNull
+  final BitSet commentMatches;
+  @CheckForNull
+  final RangeFilter rangeFilter;
+  /**
+   * {@link RangeFilter#select()} if enough rows are left after the searches to make a pass over
+   * the entire catalog worthwhile. Otherwise, the range filter is checked row by row.
+   */
+  @CheckForNull
+  final BitSet rangeMatches;
+
+  public CatalogQuery(@Nonnull BeatmapCatalog catalog, @Nonnull BeatmapRangeRequest request,
+      @CheckForNull ServerUserData userData) {
+    this.catalog = catalog;
+    this.request = request;
+    this.userData = userData;
+    settings = userData != null ? userData.getSettings() : Settings.DEFAULT_SETTINGS;
+
+    /*
+     * prepare search objects
+     */
+    if (request.getSearches().getSearchText().length() > 0) {
+      textSearchNeedle = request.getSearches().getSearchText().trim().toLowerCase();
+    } else {
+      textSearchNeedle = null;
+    }
+    textCandidates =
+        textSearchNeedle != null ? catalog.longTitleIndex.candidates(textSearchNeedle) : null;
+    if (userData != null && request.getSearches().getSearchComment().length() > 0) {
+      commentSearchNeedle = request.getSearches().getSearchComment().toLowerCase();
+    } else {
+      commentSearchNeedle = null;
+    }
+    commentMatches = commentSearchNeedle != null ? findCommentMatches() : null;
+
+    boolean useRangeFilters =
+        (textSearchNeedle == null && commentSearchNeedle == null)
+            || (settings.isApplyOtherFiltersWithTextFilter());
+
+    rangeFilter = useRangeFilters ? new RangeFilter(catalog, request, settings) : null;
+    if (rangeFilter != null && !rangeFilter.isEmpty()
+        && searchCandidateCount() * SELECT_RATIO >= catalog.size) {
+      rangeMatches = rangeFilter.select();
+    } else {
+      rangeMatches = null;
+    }
+  }
+
+  /**
+   * Goes through the user's comments instead of looking up a comment for every row: there are
+   * usually far fewer comments than rows.
+   */
+  private BitSet findCommentMatches() {
+    BitSet matches = new BitSet(catalog.size);
+    PersistentLongMap<Comment> comments = userData.getComments();
+    boolean any = commentSearchNeedle.equals("*");
+    for (long key : comments.keys()) {
+      int row = catalog.rowOf(key);
+      if (row < 0) {
+        continue;
+      }
+      if (any || comments.get(key).text.toLowerCase().contains(commentSearchNeedle)) {
+        matches.set(row);
+      }
+    }
+    return matches;
+  }
+
+  /**
+   * @return the number of rows left after the text and comment searches, which might still be
+   *         verified away
+   */
+  int searchCandidateCount() {
+    if (commentMatches != null) {
+      return commentMatches.cardinality();
+    }
+    if (textCandidates != null) {
+      return textCandidates.cardinality();
+    }
+    return catalog.size;
+  }
+
+  /**
+   * @return true if every row of the sort index matches
+   */
+  boolean isUnfiltered() {
+    return textSearchNeedle == null && commentSearchNeedle == null
+        && (rangeFilter == null || rangeFilter.isEmpty());
+  }
+
+  public boolean accept(int row) {
+    if (textCandidates != null && !textCandidates.get(row)) {
+      return false;
+    }
+
+    if (commentMatches != null && !commentMatches.get(row)) {
+      return false;
+    }
+
+    if (rangeMatches != null) {
+      if (!rangeMatches.get(row)) {
+        return false;
+      }
+    } else if (rangeFilter != null && !rangeFilter.accept(row)) {
+      return false;
+    }
+
+    /*
+     * search in name
+     */
+    if (textSearchNeedle != null && !catalog.longTitle.contains(row, textSearchNeedle)) {
+      return false;
+    }
+
+    return true;
+  }
+
+  /**
+   * @return the first row at or after the given one which can match at all. -1 if there is none.
+   */
+  int nextCandidate(int row) {
+    if (commentMatches != null) {
+      // usually the sparser one; accept checks the text candidates
+      return commentMatches.nextSetBit(row);
+    }
+    if (textCandidates != null) {
+      return textCandidates.nextSetBit(row);
+    }
+    if (rangeMatches != null) {
+      return rangeMatches.nextSetBit(row);
+    }
+    return row < catalog.size ? row : -1;
+  }
+
+  @Nonnull
+  public Page execute() {
+    if (request.sortBy == null) {
+      return scan();
+    }
+    int[] index = catalog.getSortIndex(request.sortBy, settings);
+    if (index != null) {
+      return walk(index);
+    }
+    return selectTopK();
+  }
+
+  /**
+   * Counts the matches without collecting, sorting or slicing them. Unfiltered queries are
+   * answered by the size of the catalog or sort index and range filters by the cardinality of their
+   * {@link RangeFilter#select() bitset}. Otherwise, the search candidates are checked one by one.
+   *
+   * @return same as the length of {@link #matches()}
+   */
+  public int count() {
+    int[] index = request.sortBy != null ? catalog.getSortIndex(request.sortBy, settings) : null;
+    if (isUnfiltered()) {
+      return index != null ? index.length : catalog.size;
+    }
+    if (rangeMatches != null && textSearchNeedle == null && commentSearchNeedle == null) {
+      return rangeMatches.cardinality();
+    }
+    // the star diff index doesn't contain rows without star diff
+    boolean requireStarDiff = index != null && request.sortBy == Sort.STAR_DIFF;
+    int count = 0;
+    for (int row = nextCandidate(0); row >= 0; row = nextCandidate(row + 1)) {
+      if (accept(row) && (!requireStarDiff || !Double.isNaN(catalog.starDiff[row]))) {
+        count++;
+      }
+    }
+    return count;
+  }
+
+  /**
+   * @return true if the full list of matches is worth keeping around, see {@link QueryCache}.
+   *         Comment searches depend on the user's comments and unfiltered queries can be read off
+   *         the sort indexes directly.
+   */
+  public boolean isCacheable() {
+    return commentSearchNeedle == null && !isUnfiltered();
+  }
+
+  /**
+   * @return all matching rows in ascending order of the sort key (catalog order if unsorted),
+   *         regardless of start, length and direction. This may be an array of the catalog, so
+   *         don't modify!
+   */
+  @Nonnull
+  public int[] matches() {
+    return matches(null);
+  }
+
+  /**
+   * @param parallel if not null, the filter pass is split up if it is expensive enough
+   * @see #matches()
+   */
+  @Nonnull
+  public int[] matches(@CheckForNull ParallelFilter parallel) {
+    if (isUnfiltered()) {
+      int[] index =
+          request.sortBy == null ? catalog.catalogOrder : catalog.getSortIndex(request.sortBy,
+              settings);
+      if (index != null) {
+        return index;
+      }
+    }
+    // without a sort index, we filter in catalog order and sort afterwards
+    int[] source = request.sortBy != null ? catalog.getSortIndex(request.sortBy, settings) : null;
+    int length = source != null ? source.length : catalog.size;
+
+    int[] rows;
+    if (parallel != null && parallel.isWorthIt(estimateCost(source))) {
+      rows = parallel.filter(this, source, length);
+    } else {
+      rows = filter(source, 0, length).toArray();
+    }
+
+    if (request.sortBy != null && source == null) {
+      double[] keys = new double[rows.length];
+      for (int i = 0; i < rows.length; i++) {
+        keys[i] = sortKey(rows[i]);
+      }
+      Sorting.sortByKey(keys, rows, rows.length);
+    }
+    return rows;
+  }
+
+  /**
+   * @param source rows to filter in the given order; null for catalog order
+   * @param from first position in source
+   * @param to end position in source (exclusive)
+   * @return the accepted rows in order
+   */
+  @Nonnull
+  IntList filter(@CheckForNull int[] source, int from, int to) {
+    IntList matches = new IntList();
+    if (source == null) {
+      for (int row = nextCandidate(from); row >= 0 && row < to; row = nextCandidate(row + 1)) {
+        if (accept(row)) {
+          matches.add(row);
+        }
+      }
+    } else {
+      for (int k = from; k < to; k++) {
+        if (accept(source[k])) {
+          matches.add(source[k]);
+        }
+      }
+    }
+    return matches;
+  }
+
+  /**
+   * @return roughly the number of rows that the filter pass has to look at, weighted by how
+   *         expensive each row is
+   */
+  long estimateCost(@CheckForNull int[] source) {
+    long rows = source != null ? source.length : searchCandidateCount();
+    if (rangeMatches == null && rangeFilter != null && rangeFilter.isComputingPP()) {
+      rows *= 16;
+    }
+    return rows;
+  }
+
+  /**
+   * @return true if the matches are to be read backwards
+   */
+  public boolean isReversed() {
+    return request.sortBy != null && request.direction < 0;
+  }
+
+  /**
+   * @param matches as returned by {@link #matches()} for an equivalent query
+   * @return the requested page of the matches
+   */
+  @Nonnull
+  public Page slice(@Nonnull int[] matches) {
+    return slice(matches, isReversed(), request.start, request.length);
+  }
+
+  /**
+   * @param matches see {@link #matches()}
+   * @param reversed see {@link #isReversed()}
+   */
+  @Nonnull
+  public static Page slice(@Nonnull int[] matches, boolean reversed, int start, int length) {
+    int total = matches.length;
+    start = Math.max(0, start);
+    int end = (int) Math.min(total, (long) start + Math.max(0, length));
+    start = Math.min(start, total);
+    int[] rows = new int[Math.max(0, end - start)];
+    for (int i = start; i < end; i++) {
+      rows[i - start] = matches[reversed ? total - 1 - i : i];
+    }
+    return new Page(rows, total);
+  }
+
+  private int pageEnd() {
+    return (int) Math.min(Integer.MAX_VALUE, (long) Math.max(0, request.start) + request.length);
+  }
+
+  /**
+   * Walks the rows in the order of a sort index. The page is complete after start + length
+   * matches. The pager needs the exact number of matches, so the rest of the index is only counted
+   * - unless nothing is filtered, in which case the count is the size of the index.
+   */
+  private Page walk(@Nonnull int[] index) {
+    int total = index.length;
+    boolean descending = request.direction < 0;
+    int start = Math.max(0, request.start);
+    int end = pageEnd();
+    boolean unfiltered = isUnfiltered();
+
+    IntList page = new IntList(Math.min(request.length, total));
+    int found = 0;
+    for (int k = 0; k < total; k++) {
+      int row = index[descending ? total - 1 - k : k];
+      if (!accept(row)) {
+        continue;
+      }
+      if (found >= start && found < end) {
+        page.add(row);
+      }
+      found++;
+      if (found >= end && unfiltered) {
+        found = total;
+        break;
+      }
+    }
+    return new Page(page.toArray(), found);
+  }
+
+  /**
+   * Unsorted: the page consists of the first matches in catalog order.
+   */
+  private Page scan() {
+    int start = Math.max(0, request.start);
+    int end = pageEnd();
+    boolean unfiltered = isUnfiltered();
+
+    IntList page = new IntList(Math.min(request.length, catalog.size));
+    int found = 0;
+    for (int row = nextCandidate(0); row >= 0; row = nextCandidate(row + 1)) {
+      if (!accept(row)) {
+        continue;
+      }
+      if (found >= start && found < end) {
+        page.add(row);
+      }
+      found++;
+      if (found >= end && unfiltered) {
+        found = catalog.size;
+        break;
+      }
+    }
+    return new Page(page.toArray(), found);
+  }
+
+  /**
+   * For sort keys without an index: a single filter pass, which only keeps the first start + length
+   * matches in a bounded heap and counts the rest.
+   */
+  private Page selectTopK() {
+    TopK topK = new TopK(pageEnd(), request.direction < 0);
+    int found = 0;
+    for (int row = nextCandidate(0); row >= 0; row = nextCandidate(row + 1)) {
+      if (accept(row)) {
+        topK.offer(sortKey(row), row);
+        found++;
+      }
+    }
+    return new Page(topK.window(request.start, pageEnd()), found);
+  }
+
+  double sortKey(int row) {
+    Sort sortBy = request.sortBy;
+    if (sortBy == null) {
+      return row;
+    }
+    switch (sortBy) {
+      case EXPECTED:
+        return catalog.getPP(row, settings.getLowAccuracy());
+      case PERFECT:
+        return catalog.getPP(row, settings.getHighAccuracy());
+      case BPM:
+        return catalog.bpm.get(row);
+      case LENGTH:
+        return catalog.length.get(row);
+      case STAR_DIFF:
+        return catalog.starDiff[row];
+      default:
+        throw new IllegalArgumentException(sortBy.toString());
+    }
+  }
+}
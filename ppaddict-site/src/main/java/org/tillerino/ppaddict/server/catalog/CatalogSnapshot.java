@@ -0,0 +1,257 @@
+package org.tillerino.ppaddict.server.catalog;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+
+import javax.annotation.Nonnull;
+
+/**
+ * Binary file format for a {@link BeatmapCatalog}: the columns, a dictionary of the strings, the
+ * base values and exceptions or row values of the {@link ModColumn}s, the {@link PPGrid} and the
+ * sort permutations. A snapshot is mapped into memory and copied into the catalog's arrays in
+ * bulk, so a catalog is available right after startup, long before the backend has loaded all
+ * beatmaps. Catalogs loaded from a snapshot don't have any
+ * {@link BeatmapCatalog#getData(int) data}, so pp for custom accuracies are interpolated from the
+ * {@link PPGrid} until the backend's catalog replaces it, even with exact pp. The range, mod and
+ * text indexes are rebuilt from the columns.
+ *
+ * @author Tillerino
+ */
+public class CatalogSnapshot {
+  static final int MAGIC = 0x70706373;
+  static final int FORMAT = 4;
+
+  private CatalogSnapshot() {}
+
+  /**
+   * Writes to a temporary file first, which then replaces the given file.
+   *
+   * @param catalog must be built with the coarse part of the {@link PPGrid}
+   */
+  public static void write(@Nonnull BeatmapCatalog catalog, @Nonnull File file) throws IOException {
+    if (!catalog.ppGrid.coarse) {
+      throw new IllegalArgumentException("the catalog's pp grid has no low accuracies");
+    }
+    File temp = new File(file.getPath() + ".tmp");
+    int size = catalog.size;
+    try (DataOutputStream out =
+        new DataOutputStream(new BufferedOutputStream(new FileOutputStream(temp), 1 << 16))) {
+      out.writeInt(MAGIC);
+      out.writeInt(FORMAT);
+      out.writeInt(size);
+      out.writeInt(PPGrid.POINTS);
+
+      writeInts(out, catalog.beatmapId, size);
+      for (int row = 0; row < size; row++) {
+        out.writeLong(catalog.mods[row]);
+      }
+      writeInts(out, catalog.setId, size);
+      writeInts(out, catalog.beatmap, size);
+
+      Map<String, Integer> ids = new HashMap<>();
+      List<String> strings = new ArrayList<>();
+      int[] artist = dictionary(catalog.artist, size, ids, strings);
+      int[] title = dictionary(catalog.title, size, ids, strings);
+      int[] versionName = dictionary(catalog.versionName, size, ids, strings);
+      out.writeInt(strings.size());
+      for (String string : strings) {
+        byte[] bytes = string.getBytes(StandardCharsets.UTF_8);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+      }
+      writeInts(out, artist, size);
+      writeInts(out, title, size);
+      writeInts(out, versionName, size);
+
+      out.writeInt(catalog.beatmapCount);
+      for (ModColumn column : modColumns(catalog)) {
+        for (int beatmap = 0; beatmap < catalog.beatmapCount; beatmap++) {
+          out.writeDouble(column.base[beatmap]);
+        }
+        out.writeBoolean(column.values != null);
+        if (column.values != null) {
+          for (int row = 0; row < size; row++) {
+            out.writeDouble(column.values[row]);
+          }
+          continue;
+        }
+        out.writeInt(column.exceptions.size());
+        for (Entry<Integer, Double> exception : column.exceptions.entrySet()) {
+          out.writeInt(exception.getKey());
+          out.writeDouble(exception.getValue());
+        }
+      }
+      for (double[] column : doubleColumns(catalog)) {
+        for (int row = 0; row < size; row++) {
+          out.writeDouble(column[row]);
+        }
+      }
+      for (float pp : catalog.ppGrid.pp) {
+        out.writeFloat(pp);
+      }
+
+      for (int[] index : sortIndexes(catalog)) {
+        out.writeInt(index.length);
+        writeInts(out, index, index.length);
+      }
+    }
+    Files.move(temp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING,
+        StandardCopyOption.ATOMIC_MOVE);
+  }
+
+  /**
+   * @throws IOException if the file is missing, broken or in an older format
+   */
+  @Nonnull
+  public static BeatmapCatalog read(@Nonnull File file, long version, boolean exactPP)
+      throws IOException {
+    try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+      MappedByteBuffer buffer = channel.map(MapMode.READ_ONLY, 0, channel.size());
+      if (buffer.remaining() < 16 || buffer.getInt() != MAGIC || buffer.getInt() != FORMAT) {
+        throw new IOException("not a catalog snapshot: " + file);
+      }
+      int size = buffer.getInt();
+      if (buffer.getInt() != PPGrid.POINTS) {
+        throw new IOException("different pp grid: " + file);
+      }
+
+      BeatmapCatalog catalog = new BeatmapCatalog(version, size, exactPP, true);
+      catalog.missingData = true;
+      readInts(buffer, catalog.beatmapId);
+      buffer.asLongBuffer().get(catalog.mods);
+      buffer.position(buffer.position() + size * 8);
+      readInts(buffer, catalog.setId);
+      readInts(buffer, catalog.beatmap);
+
+      String[] strings = new String[buffer.getInt()];
+      for (int i = 0; i < strings.length; i++) {
+        byte[] bytes = new byte[buffer.getInt()];
+        buffer.get(bytes);
+        strings[i] = new String(bytes, StandardCharsets.UTF_8);
+      }
+      int[] refs = new int[size];
+      for (StringColumn column : new StringColumn[] {catalog.artist, catalog.title,
+          catalog.versionName}) {
+        readInts(buffer, refs);
+        for (int row = 0; row < size; row++) {
+          column.set(row, strings[refs[row]]);
+        }
+      }
+
+      catalog.beatmapCount = buffer.getInt();
+      catalog.beatmapIndexes = null;
+      for (ModColumn column : modColumns(catalog)) {
+        column.base = new double[catalog.beatmapCount];
+        buffer.asDoubleBuffer().get(column.base);
+        buffer.position(buffer.position() + catalog.beatmapCount * 8);
+        if (buffer.get() != 0) {
+          column.values = new double[size];
+          buffer.asDoubleBuffer().get(column.values);
+          buffer.position(buffer.position() + size * 8);
+          continue;
+        }
+        for (int i = buffer.getInt(); i > 0; i--) {
+          column.exceptions.put(buffer.getInt(), buffer.getDouble());
+        }
+      }
+      for (double[] column : doubleColumns(catalog)) {
+        buffer.asDoubleBuffer().get(column);
+        buffer.position(buffer.position() + size * 8);
+      }
+      buffer.asFloatBuffer().get(catalog.ppGrid.pp);
+      buffer.position(buffer.position() + catalog.ppGrid.pp.length * 4);
+
+      int[][] sortIndexes = new int[8][];
+      for (int i = 0; i < sortIndexes.length; i++) {
+        sortIndexes[i] = new int[buffer.getInt()];
+        readInts(buffer, sortIndexes[i]);
+      }
+      catalog.approachRateIndex = sortIndexes[0];
+      catalog.overallDifficultyIndex = sortIndexes[1];
+      catalog.circleSizeIndex = sortIndexes[2];
+      catalog.expectedPPIndex = sortIndexes[3];
+      catalog.perfectPPIndex = sortIndexes[4];
+      catalog.bpmIndex = sortIndexes[5];
+      catalog.lengthIndex = sortIndexes[6];
+      catalog.starDiffIndex = sortIndexes[7];
+
+      for (int row = 0; row < size; row++) {
+        catalog.rows.put(BeatmapCatalog.key(catalog.beatmapId[row], catalog.mods[row]), row);
+        catalog.longTitle.set(row, BeatmapCatalog.longTitle(catalog.artist.get(row),
+            catalog.title.get(row), catalog.versionName.get(row)));
+      }
+      catalog.catalogOrder = BeatmapCatalog.identity(size);
+      catalog.buildBucketIndexes();
+      catalog.buildModBits();
+      catalog.finishStrings();
+
+      return catalog;
+    } catch (RuntimeException e) {
+      // buffer underflows and bad references
+      throw new IOException("broken catalog snapshot: " + file, e);
+    }
+  }
+
+  private static ModColumn[] modColumns(BeatmapCatalog catalog) {
+    return new ModColumn[] {catalog.approachRate, catalog.overallDifficulty, catalog.circleSize,
+        catalog.bpm, catalog.length};
+  }
+
+  private static double[][] doubleColumns(BeatmapCatalog catalog) {
+    return new double[][] {catalog.starDiff, catalog.displayStarDiff, catalog.expectedPP,
+        catalog.perfectPP};
+  }
+
+  /**
+   * same order as in {@link #read(File, long, boolean)}
+   */
+  private static int[][] sortIndexes(BeatmapCatalog catalog) {
+    return new int[][] {catalog.approachRateIndex, catalog.overallDifficultyIndex,
+        catalog.circleSizeIndex, catalog.expectedPPIndex, catalog.perfectPPIndex,
+        catalog.bpmIndex, catalog.lengthIndex, catalog.starDiffIndex};
+  }
+
+  private static int[] dictionary(StringColumn column, int size, Map<String, Integer> ids,
+      List<String> strings) {
+    int[] refs = new int[size];
+    for (int row = 0; row < size; row++) {
+      String string = column.get(row);
+      Integer id = ids.get(string);
+      if (id == null) {
+        id = strings.size();
+        ids.put(string, id);
+        strings.add(string);
+      }
+      refs[row] = id;
+    }
+    return refs;
+  }
+
+  private static void writeInts(DataOutputStream out, int[] values, int length)
+      throws IOException {
+    for (int i = 0; i < length; i++) {
+      out.writeInt(values[i]);
+    }
+  }
+
+  private static void readInts(ByteBuffer buffer, int[] values) {
+    buffer.asIntBuffer().get(values);
+    buffer.position(buffer.position() + values.length * 4);
+  }
+}
@@ -0,0 +1,111 @@
+package org.tillerino.ppaddict.server.catalog;
+
+import java.security.SecureRandom;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Objects;
+
+import javax.annotation.CheckForNull;
+import javax.annotation.Nonnull;
+import javax.inject.Singleton;
+
+import org.tillerino.ppaddict.server.catalog.CatalogQuery.Page;
+
+/**
+ * Pins the matches of a query together with the catalog they refer to, so that scrolling through
+ * the table only has to slice the next window and doesn't change under the user's feet when the
+ * catalog is rebuilt. Cursors expire when they have not been used for a while. At most the two
+ * newest catalog versions are kept alive by cursors.
+ *
+ * @author Tillerino
+ */
+@Singleton
+public class CursorStore {
+  static final int MAX_CURSORS = 256;
+  static final long TIMEOUT = 10 * 60 * 1000;
+
+  public static class Cursor {
+    @Nonnull
+    public final BeatmapCatalog catalog;
+    @Nonnull
+    final int[] matches;
+    final boolean reversed;
+    @CheckForNull
+    final String owner;
+    long lastAccess = System.currentTimeMillis();
+
+    Cursor(@Nonnull BeatmapCatalog catalog, @Nonnull int[] matches, boolean reversed,
+        @CheckForNull String owner) {
+      this.catalog = catalog;
+      this.matches = matches;
+      this.reversed = reversed;
+      this.owner = owner;
+    }
+
+    @Nonnull
+    public Page slice(int start, int length) {
+      return CatalogQuery.slice(matches, reversed, start, length);
+    }
+  }
+
+  private final SecureRandom random = new SecureRandom();
+
+  private final LinkedHashMap<String, Cursor> cursors = new LinkedHashMap<>(16, .75f, true);
+
+  private long newestVersion = 0;
+
+  /**
+   * @param matches see {@link CatalogQuery#matches()}; must not be modified afterwards
+   * @param owner the identifier of the logged in user or null
+   * @return the id of the new cursor
+   */
+  @Nonnull
+  public synchronized String open(@Nonnull CatalogQuery query, @Nonnull int[] matches,
+      @CheckForNull String owner) {
+    long now = System.currentTimeMillis();
+    newestVersion = Math.max(newestVersion, query.catalog.version);
+    for (Iterator<Cursor> iterator = cursors.values().iterator(); iterator.hasNext();) {
+      Cursor cursor = iterator.next();
+      if (cursor.lastAccess < now - TIMEOUT || cursor.catalog.version < newestVersion - 1) {
+        iterator.remove();
+      }
+    }
+    while (cursors.size() >= MAX_CURSORS) {
+      Iterator<String> eldest = cursors.keySet().iterator();
+      eldest.next();
+      eldest.remove();
+    }
+
+    byte[] bytes = new byte[16];
+    random.nextBytes(bytes);
+    StringBuilder id = new StringBuilder(32);
+    for (byte b : bytes) {
+      id.append(Character.forDigit((b >> 4) & 0xf, 16)).append(Character.forDigit(b & 0xf, 16));
+    }
+
+    cursors.put(id.toString(), new Cursor(query.catalog, matches, query.isReversed(), owner));
+    return id.toString();
+  }
+
+  /**
+   * @param owner the identifier of the logged in user or null
+   * @return null if the cursor expired or belongs to someone else
+   */
+  @CheckForNull
+  public synchronized Cursor get(@Nonnull String id, @CheckForNull String owner) {
+    Cursor cursor = cursors.get(id);
+    if (cursor == null) {
+      return null;
+    }
+    long now = System.currentTimeMillis();
+    if (cursor.lastAccess < now - TIMEOUT) {
+      cursors.remove(id);
+      return null;
+    }
+    if (!Objects.equals(owner, cursor.owner)) {
+      return null;
+    }
+    cursor.lastAccess = now;
+    return cursor;
+  }
+}
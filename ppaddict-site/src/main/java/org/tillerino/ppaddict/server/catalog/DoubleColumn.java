@@ -0,0 +1,10 @@
+package org.tillerino.ppaddict.server.catalog;
+
+/**
+ * Read access to a numeric catalog column, whether it is stored or derived.
+ *
+ * @author Tillerino
+ */
+public interface DoubleColumn {
+  double get(int row);
+}
@@ -0,0 +1,40 @@
+package org.tillerino.ppaddict.server.catalog;
+
+import java.util.Arrays;
+
+/**
+ * Growable list of catalog rows without boxing.
+ *
+ * @author Tillerino
+ */
+public class IntList {
+  private int[] elements;
+  private int size = 0;
+
+  public IntList() {
+    this(16);
+  }
+
+  public IntList(int capacity) {
+    elements = new int[Math.max(capacity, 1)];
+  }
+
+  public void add(int element) {
+    if (size == elements.length) {
+      elements = Arrays.copyOf(elements, size * 2);
+    }
+    elements[size++] = element;
+  }
+
+  public int size() {
+    return size;
+  }
+
+  public void copyTo(int[] destination, int offset) {
+    System.arraycopy(elements, 0, destination, offset, size);
+  }
+
+  public int[] toArray() {
+    return Arrays.copyOf(elements, size);
+  }
+}
@@ -0,0 +1,57 @@
+package org.tillerino.ppaddict.server.catalog;
+
+import java.util.Arrays;
+
+/**
+ * Catalog rows by {@link BeatmapCatalog#key(int, long)}, without boxing. Open addressing with a
+ * fixed capacity, since a catalog's size is known when it is built. Not thread safe while it is
+ * being filled.
+ *
+ * @author Tillerino
+ */
+public class LongIntMap {
+  private final long[] keys;
+  /**
+   * -1 for empty slots
+   */
+  private final int[] values;
+
+  /**
+   * @param maxSize the map never holds more keys than this
+   */
+  public LongIntMap(int maxSize) {
+    int capacity = 8;
+    while (capacity < maxSize * 2) {
+      capacity *= 2;
+    }
+    keys = new long[capacity];
+    values = new int[capacity];
+    Arrays.fill(values, -1);
+  }
+
+  private int find(long key) {
+    int mask = keys.length - 1;
+    long h = key * 0x9E3779B97F4A7C15L;
+    for (int i = (int) (h ^ (h >>> 32)) & mask;; i = (i + 1) & mask) {
+      if (values[i] < 0 || keys[i] == key) {
+        return i;
+      }
+    }
+  }
+
+  /**
+   * @return -1 if the key is not in the map
+   */
+  public int get(long key) {
+    return values[find(key)];
+  }
+
+  /**
+   * @param value not negative
+   */
+  public void put(long key, int value) {
+    int i = find(key);
+    keys[i] = key;
+    values[i] = value;
+  }
+}
@@ -0,0 +1,146 @@
+package org.tillerino.ppaddict.server.catalog;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+import javax.annotation.CheckForNull;
+import javax.annotation.Nonnull;
+
+import org.tillerino.osuApiModel.OsuApiBeatmap;
+import org.tillerino.ppaddict.server.catalog.ModTransforms.Attribute;
+
+/**
+ * A mod-dependent attribute of the catalog rows. Only the beatmap's own value is stored, once per
+ * beatmap; the value of a row is derived from it and the row's mods when it is read. When a row is
+ * filled, the derived value is compared to {@link OsuApiBeatmap}'s. Rows where they differ keep the
+ * library's value, so results are the same as without the derivation. If that happens for more
+ * than a few rows, the column stores the value of every row instead.
+ *
+ * @author Tillerino
+ */
+public class ModColumn implements DoubleColumn {
+  private final Attribute attribute;
+
+  /**
+   * beatmap of each row, see {@link BeatmapCatalog#beatmap}
+   */
+  private final int[] beatmaps;
+  private final long[] mods;
+
+  /**
+   * the attribute without mods for each beatmap
+   */
+  double[] base;
+
+  /**
+   * the library's value for rows where deriving gives something else; empty if the formulas agree
+   * or if there are {@link #values}
+   */
+  Map<Integer, Double> exceptions = new HashMap<>();
+
+  /**
+   * the value of every row; only if there are more than {@link #MAX_EXCEPTIONS} exceptions per row
+   */
+  @CheckForNull
+  double[] values;
+
+  /**
+   * boxed map entries take about ten times the space of a double
+   */
+  static final double MAX_EXCEPTIONS = 1 / 16d;
+
+  private final int capacity;
+
+  ModColumn(@Nonnull Attribute attribute, @Nonnull int[] beatmaps, @Nonnull long[] mods,
+      int capacity) {
+    this.attribute = attribute;
+    this.beatmaps = beatmaps;
+    this.mods = mods;
+    this.capacity = capacity;
+    base = new double[capacity];
+  }
+
+  /**
+   * @return false if the derived value differs from the library's, which is then kept for the row
+   */
+  boolean set(int row, int beatmap, @Nonnull OsuApiBeatmap apiBeatmap, long mods) {
+    base[beatmap] = attribute.base(apiBeatmap);
+    if (attribute.agrees(apiBeatmap, mods)) {
+      if (values != null) {
+        values[row] = attribute.apply(base[beatmap], mods);
+      }
+      return true;
+    }
+    except(row, attribute.withMods(apiBeatmap, mods));
+    return false;
+  }
+
+  void copy(@Nonnull ModColumn from, int fromRow, int fromBeatmap, int row, int beatmap) {
+    base[beatmap] = from.base[fromBeatmap];
+    if (values != null) {
+      values[row] = from.get(fromRow);
+    } else if (from.values != null) {
+      double value = from.values[fromRow];
+      if (value != attribute.apply(base[beatmap], mods[row])) {
+        except(row, value);
+      }
+    } else if (!from.exceptions.isEmpty()) {
+      Double exception = from.exceptions.get(fromRow);
+      if (exception != null) {
+        except(row, exception);
+      }
+    }
+  }
+
+  /**
+   * keeps the library's value for a row and switches to {@link #values} if there are too many
+   */
+  private void except(int row, double value) {
+    if (values != null) {
+      values[row] = value;
+      return;
+    }
+    exceptions.put(row, value);
+    if (exceptions.size() > capacity * MAX_EXCEPTIONS) {
+      // rows which are not filled yet are overwritten when they are
+      values = materialize(capacity);
+      exceptions = new HashMap<>();
+    }
+  }
+
+  @Override
+  public double get(int row) {
+    if (values != null) {
+      return values[row];
+    }
+    if (!exceptions.isEmpty()) {
+      Double exception = exceptions.get(row);
+      if (exception != null) {
+        return exception;
+      }
+    }
+    return attribute.apply(base[beatmaps[row]], mods[row]);
+  }
+
+  /**
+   * @return the values of rows 0..size-1, for sorting
+   */
+  @Nonnull
+  double[] materialize(int size) {
+    double[] values = new double[size];
+    for (int row = 0; row < size; row++) {
+      values[row] = get(row);
+    }
+    return values;
+  }
+
+  /**
+   * cuts the base values down to the number of beatmaps once all are known
+   */
+  void trim(int beatmapCount) {
+    if (base.length != beatmapCount) {
+      base = Arrays.copyOf(base, beatmapCount);
+    }
+  }
+}
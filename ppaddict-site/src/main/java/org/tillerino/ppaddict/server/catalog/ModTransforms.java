@@ -0,0 +1,196 @@
+package org.tillerino.ppaddict.server.catalog;
+
+import org.tillerino.osuApiModel.Mods;
+import org.tillerino.osuApiModel.OsuApiBeatmap;
+
+/**
+ * How mods change a beatmap's attributes, so these don't have to be stored for every mod variant.
+ * Hard Rock and Easy scale the difficulty settings. Speed mods change the rate at which the map is
+ * played: bpm and length directly, approach rate and overall difficulty through their time
+ * windows. These replicate {@link OsuApiBeatmap}'s formulas; {@link ModColumn} checks every row
+ * against the library when the catalog is built.
+ *
+ * @author Tillerino
+ */
+public class ModTransforms {
+  static final long EASY = Mods.getMask(Mods.Easy);
+  static final long HARD_ROCK = Mods.getMask(Mods.HardRock);
+  static final long DOUBLE_TIME = Mods.getMask(Mods.DoubleTime, Mods.Nightcore);
+  static final long HALF_TIME = Mods.getMask(Mods.HalfTime);
+
+  /**
+   * An attribute which depends on the mods.
+   */
+  public enum Attribute {
+    APPROACH_RATE {
+      @Override
+      public double apply(double value, long mods) {
+        return approachRate(value, mods);
+      }
+
+      @Override
+      double base(OsuApiBeatmap beatmap) {
+        return beatmap.getApproachRate();
+      }
+
+      @Override
+      double withMods(OsuApiBeatmap beatmap, long mods) {
+        return beatmap.getApproachRate(mods);
+      }
+    },
+    OVERALL_DIFFICULTY {
+      @Override
+      public double apply(double value, long mods) {
+        return overallDifficulty(value, mods);
+      }
+
+      @Override
+      double base(OsuApiBeatmap beatmap) {
+        return beatmap.getOverallDifficulty();
+      }
+
+      @Override
+      double withMods(OsuApiBeatmap beatmap, long mods) {
+        return beatmap.getOverallDifficulty(mods);
+      }
+    },
+    CIRCLE_SIZE {
+      @Override
+      public double apply(double value, long mods) {
+        return circleSize(value, mods);
+      }
+
+      @Override
+      double base(OsuApiBeatmap beatmap) {
+        return beatmap.getCircleSize();
+      }
+
+      @Override
+      double withMods(OsuApiBeatmap beatmap, long mods) {
+        return beatmap.getCircleSize(mods);
+      }
+    },
+    BPM {
+      @Override
+      public double apply(double value, long mods) {
+        return bpm(value, mods);
+      }
+
+      @Override
+      double base(OsuApiBeatmap beatmap) {
+        return beatmap.getBpm();
+      }
+
+      @Override
+      double withMods(OsuApiBeatmap beatmap, long mods) {
+        return beatmap.getBpm(mods);
+      }
+    },
+    LENGTH {
+      @Override
+      public double apply(double value, long mods) {
+        return length(value, mods);
+      }
+
+      @Override
+      double base(OsuApiBeatmap beatmap) {
+        return beatmap.getTotalLength();
+      }
+
+      @Override
+      double withMods(OsuApiBeatmap beatmap, long mods) {
+        return beatmap.getTotalLength(mods);
+      }
+    };
+
+    /**
+     * @param value the attribute without mods
+     */
+    public abstract double apply(double value, long mods);
+
+    /**
+     * @return the attribute without mods
+     */
+    abstract double base(OsuApiBeatmap beatmap);
+
+    /**
+     * @return the attribute with mods as calculated by the library, see {@link ModColumn}
+     */
+    abstract double withMods(OsuApiBeatmap beatmap, long mods);
+
+    /**
+     * @return true if {@link #apply(double, long)} gives the library's value for the beatmap
+     */
+    boolean agrees(OsuApiBeatmap beatmap, long mods) {
+      double derived = apply(base(beatmap), mods);
+      double expected = withMods(beatmap, mods);
+      return Double.compare(derived, expected) == 0
+          || Math.abs(derived - expected) <= 1E-6 * Math.max(1, Math.abs(expected));
+    }
+  }
+
+  private ModTransforms() {}
+
+  /**
+   * @return 1.5 for Double Time and Nightcore, .75 for Half Time, 1 otherwise
+   */
+  public static double rate(long mods) {
+    if ((mods & DOUBLE_TIME) != 0) {
+      return 1.5;
+    }
+    if ((mods & HALF_TIME) != 0) {
+      return .75;
+    }
+    return 1;
+  }
+
+  /**
+   * Hard Rock multiplies by the given factor up to 10, Easy halves.
+   */
+  static double difficulty(double value, long mods, double hardRockFactor) {
+    if ((mods & HARD_ROCK) != 0) {
+      return Math.min(10, value * hardRockFactor);
+    }
+    if ((mods & EASY) != 0) {
+      return value / 2;
+    }
+    return value;
+  }
+
+  public static double approachRate(double approachRate, long mods) {
+    approachRate = difficulty(approachRate, mods, 1.4);
+    double rate = rate(mods);
+    if (rate == 1) {
+      return approachRate;
+    }
+    double ms = approachRate <= 5 ? 1800 - approachRate * 120 : 1200 - (approachRate - 5) * 150;
+    ms /= rate;
+    return ms >= 1200 ? (1800 - ms) / 120 : (1200 - ms) / 150 + 5;
+  }
+
+  public static double overallDifficulty(double overallDifficulty, long mods) {
+    overallDifficulty = difficulty(overallDifficulty, mods, 1.4);
+    double rate = rate(mods);
+    if (rate == 1) {
+      return overallDifficulty;
+    }
+    // hit window for 300s
+    double ms = (80 - 6 * overallDifficulty) / rate;
+    return (80 - ms) / 6;
+  }
+
+  public static double circleSize(double circleSize, long mods) {
+    return difficulty(circleSize, mods, 1.3);
+  }
+
+  public static double bpm(double bpm, long mods) {
+    return bpm * rate(mods);
+  }
+
+  /**
+   * @param length in seconds
+   */
+  public static double length(double length, long mods) {
+    return length / rate(mods);
+  }
+}
@@ -0,0 +1,95 @@
+package org.tillerino.ppaddict.server.catalog;
+
+import javax.annotation.Nonnull;
+
+import tillerino.tillerinobot.BeatmapMeta.PercentageEstimates;
+
+/**
+ * pp of every catalog row at fixed accuracies: from {@value #FINE_FROM}% to 100% in steps of
+ * {@value #FINE_STEP}% and below that down to 0% in steps of {@value #COARSE_STEP}%, so every
+ * accuracy that {@link org.tillerino.ppaddict.shared.Settings} allows is covered. Accuracies in
+ * between are interpolated linearly, which is well within display precision in the fine part since
+ * pp is a smooth function of the accuracy at this resolution. The coarse part is only a fallback
+ * for catalogs without the estimates, see {@link BeatmapCatalog#getPP(int, double)}, so it is only
+ * there if the catalog is going to be written to a {@link CatalogSnapshot}.
+ *
+ * @author Tillerino
+ */
+public class PPGrid {
+  static final double FINE_FROM = 90;
+  static final double FINE_STEP = .5;
+  static final double COARSE_STEP = 2.5;
+  /**
+   * points below {@link #FINE_FROM}: 0, 2.5, ..., 87.5
+   */
+  static final int COARSE_POINTS = (int) (FINE_FROM / COARSE_STEP);
+  static final int POINTS = COARSE_POINTS + (int) ((100 - FINE_FROM) / FINE_STEP) + 1;
+
+  /**
+   * true if the grid has the coarse part
+   */
+  final boolean coarse;
+  /**
+   * index of the first point which the grid has
+   */
+  private final int first;
+  /**
+   * number of points per row
+   */
+  private final int points;
+
+  /**
+   * {@link #points} values per row
+   */
+  final float[] pp;
+
+  PPGrid(int size, boolean coarse) {
+    this.coarse = coarse;
+    first = coarse ? 0 : COARSE_POINTS;
+    points = POINTS - first;
+    pp = new float[size * points];
+  }
+
+  /**
+   * @return the accuracy in percent of the i-th point
+   */
+  static double accuracy(int i) {
+    return i < COARSE_POINTS ? i * COARSE_STEP : FINE_FROM + (i - COARSE_POINTS) * FINE_STEP;
+  }
+
+  void set(int row, @Nonnull PercentageEstimates estimates) {
+    for (int i = 0; i < points; i++) {
+      pp[row * points + i] = (float) estimates.getPPForAcc(accuracy(first + i) / 100d);
+    }
+  }
+
+  /**
+   * @param from must have the same points
+   */
+  void copy(@Nonnull PPGrid from, int fromRow, int toRow) {
+    System.arraycopy(from.pp, fromRow * points, pp, toRow * points, points);
+  }
+
+  /**
+   * @param accuracy in percent
+   * @return true if the accuracy is in the fine part of the grid
+   */
+  static boolean isFine(double accuracy) {
+    return accuracy >= FINE_FROM && accuracy <= 100;
+  }
+
+  /**
+   * @param accuracy in percent, between 0 and 100, or from {@value #FINE_FROM} if the grid is not
+   *        {@link #coarse}. Nothing is extrapolated: values outside are clamped.
+   */
+  double get(int row, double accuracy) {
+    double position =
+        accuracy < FINE_FROM ? accuracy / COARSE_STEP : COARSE_POINTS + (accuracy - FINE_FROM)
+            / FINE_STEP;
+    position = Math.max(first, Math.min(POINTS - 1, position));
+    int i = Math.min((int) position, POINTS - 2);
+    double fraction = position - i;
+    int offset = row * points + i - first;
+    return pp[offset] + (pp[offset + 1] - pp[offset]) * fraction;
+  }
+}
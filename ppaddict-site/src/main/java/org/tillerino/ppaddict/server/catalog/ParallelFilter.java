@@ -0,0 +1,94 @@
+package org.tillerino.ppaddict.server.catalog;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+import javax.annotation.CheckForNull;
+import javax.annotation.Nonnull;
+import javax.inject.Named;
+import javax.inject.Singleton;
+
+import com.google.inject.Inject;
+
+/**
+ * Splits the filter pass of a {@link CatalogQuery} into chunks, which are filtered on the common
+ * {@link ForkJoinPool}. Each chunk collects its matches in its own buffer and the buffers are
+ * concatenated in order afterwards, so the result is the same as that of a sequential pass.
+ *
+ * @author Tillerino
+ */
+@Singleton
+public class ParallelFilter {
+  /**
+   * see {@link #setThreshold(long)}
+   */
+  public static final long DEFAULT_THRESHOLD = 50000;
+
+  static final int MIN_CHUNK_SIZE = 4096;
+
+  private final ForkJoinPool pool = ForkJoinPool.commonPool();
+
+  private long threshold = DEFAULT_THRESHOLD;
+
+  /**
+   * @param threshold queries with a lower {@link CatalogQuery#estimateCost(int[])} are filtered
+   *        sequentially
+   */
+  @Inject(optional = true)
+  public void setThreshold(@Named("ppaddict.catalog.parallelThreshold") long threshold) {
+    this.threshold = threshold;
+  }
+
+  public boolean isWorthIt(long estimatedCost) {
+    return estimatedCost >= threshold && pool.getParallelism() > 1;
+  }
+
+  /**
+   * @param source see {@link CatalogQuery#filter(int[], int, int)}
+   * @param length number of positions in source, or catalog size
+   * @return the accepted rows in order
+   */
+  @Nonnull
+  public int[] filter(@Nonnull final CatalogQuery query, @CheckForNull final int[] source,
+      final int length) {
+    final int chunkSize = Math.max(MIN_CHUNK_SIZE, length / (pool.getParallelism() * 4) + 1);
+    final int chunks = (length + chunkSize - 1) / chunkSize;
+    final IntList[] results = new IntList[chunks];
+
+    pool.invoke(new RecursiveAction() {
+      private static final long serialVersionUID = 1L;
+
+      @Override
+      protected void compute() {
+        List<RecursiveAction> tasks = new ArrayList<>(chunks);
+        for (int c = 0; c < chunks; c++) {
+          final int chunk = c;
+          tasks.add(new RecursiveAction() {
+            private static final long serialVersionUID = 1L;
+
+            @Override
+            protected void compute() {
+              int from = chunk * chunkSize;
+              results[chunk] = query.filter(source, from, Math.min(length, from + chunkSize));
+            }
+          });
+        }
+        invokeAll(tasks);
+      }
+    });
+
+    int total = 0;
+    for (IntList result : results) {
+      total += result.size();
+    }
+    int[] rows = new int[total];
+    int offset = 0;
+    for (IntList result : results) {
+      result.copyTo(rows, offset);
+      offset += result.size();
+    }
+    return rows;
+  }
+}
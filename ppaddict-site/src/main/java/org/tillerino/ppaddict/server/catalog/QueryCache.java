@@ -0,0 +1,164 @@
+package org.tillerino.ppaddict.server.catalog;
+
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map.Entry;
+import java.util.Objects;
+
+import javax.annotation.CheckForNull;
+import javax.annotation.Nonnull;
+import javax.inject.Inject;
+import javax.inject.Singleton;
+
+import org.tillerino.ppaddict.shared.BeatmapRangeRequest;
+import org.tillerino.ppaddict.shared.BeatmapRangeRequest.Sort;
+import org.tillerino.ppaddict.shared.MinMax;
+import org.tillerino.ppaddict.shared.Settings;
+
+/**
+ * Remembers the full list of matches of recent queries. Scrolling down the table sends the same
+ * query with a larger start, which is then just a slice of the cached list. Start, length and
+ * direction are not part of the key. Everything is dropped when the catalog version changes.
+ *
+ * @author Tillerino
+ */
+@Singleton
+public class QueryCache {
+  static final int MAX_ENTRIES = 64;
+  /**
+   * upper bound for the total number of cached rows
+   */
+  static final int MAX_ROWS = 1 << 22;
+
+  static final class Key {
+    final MinMax[] ranges;
+    final String searchText;
+    @CheckForNull
+    final Long mods;
+    final Sort sortBy;
+    final double lowAccuracy;
+    final double highAccuracy;
+    final boolean applyOtherFiltersWithTextFilter;
+
+    Key(BeatmapRangeRequest request, Settings settings) {
+      ranges =
+          new MinMax[] {request.expectedPP.getCopy(), request.perfectPP.getCopy(),
+              request.aR.getCopy(), request.cS.getCopy(), request.oD.getCopy(),
+              request.bpm.getCopy(), request.mapLength.getCopy(), request.starDiff.getCopy()};
+      searchText = request.getSearches().getSearchText().toLowerCase();
+      mods = RangeFilter.parseMods(request.mods);
+      sortBy = request.sortBy;
+      lowAccuracy = settings.getLowAccuracy();
+      highAccuracy = settings.getHighAccuracy();
+      applyOtherFiltersWithTextFilter = settings.isApplyOtherFiltersWithTextFilter();
+    }
+
+    @Override
+    public int hashCode() {
+      final int prime = 31;
+      int result = Arrays.hashCode(ranges);
+      result = prime * result + searchText.hashCode();
+      result = prime * result + (mods == null ? 0 : mods.hashCode());
+      result = prime * result + (sortBy == null ? 0 : sortBy.hashCode());
+      result = prime * result + Double.valueOf(lowAccuracy).hashCode();
+      result = prime * result + Double.valueOf(highAccuracy).hashCode();
+      result = prime * result + (applyOtherFiltersWithTextFilter ? 1 : 0);
+      return result;
+    }
+
+    @Override
+    public boolean equals(Object obj) {
+      if (this == obj)
+        return true;
+      if (!(obj instanceof Key))
+        return false;
+      Key other = (Key) obj;
+      return Arrays.equals(ranges, other.ranges) && searchText.equals(other.searchText)
+          && Objects.equals(mods, other.mods) && sortBy == other.sortBy
+          && Double.compare(lowAccuracy, other.lowAccuracy) == 0
+          && Double.compare(highAccuracy, other.highAccuracy) == 0
+          && applyOtherFiltersWithTextFilter == other.applyOtherFiltersWithTextFilter;
+    }
+  }
+
+  private final ParallelFilter parallelFilter;
+
+  private final LinkedHashMap<Key, int[]> entries = new LinkedHashMap<>(16, .75f, true);
+  private long version = -1;
+  private long rows = 0;
+
+  @Inject
+  public QueryCache(ParallelFilter parallelFilter) {
+    this.parallelFilter = parallelFilter;
+  }
+
+  /**
+   * @return the page for the query, using and filling the cache if the query is cacheable
+   */
+  @Nonnull
+  public CatalogQuery.Page execute(@Nonnull CatalogQuery query) {
+    if (!query.isCacheable()) {
+      return query.execute();
+    }
+    return query.slice(matches(query));
+  }
+
+  /**
+   * @return see {@link CatalogQuery#matches()}. Don't modify!
+   */
+  @Nonnull
+  public int[] matches(@Nonnull CatalogQuery query) {
+    if (!query.isCacheable()) {
+      return query.matches(parallelFilter);
+    }
+    Key key = new Key(query.request, query.settings);
+    int[] matches = get(query.catalog.version, key);
+    if (matches == null) {
+      matches = query.matches(parallelFilter);
+      put(query.catalog.version, key, matches);
+    }
+    return matches;
+  }
+
+  /**
+   * @return see {@link CatalogQuery#count()}. Cached matches are used, but the count is not cached.
+   */
+  public int count(@Nonnull CatalogQuery query) {
+    if (query.isCacheable()) {
+      int[] matches = get(query.catalog.version, new Key(query.request, query.settings));
+      if (matches != null) {
+        return matches.length;
+      }
+    }
+    return query.count();
+  }
+
+  private synchronized int[] get(long catalogVersion, Key key) {
+    if (catalogVersion != version) {
+      return null;
+    }
+    return entries.get(key);
+  }
+
+  private synchronized void put(long catalogVersion, Key key, int[] matches) {
+    if (catalogVersion < version || matches.length > MAX_ROWS) {
+      return;
+    }
+    if (catalogVersion > version) {
+      entries.clear();
+      rows = 0;
+      version = catalogVersion;
+    }
+    int[] previous = entries.put(key, matches);
+    if (previous != null) {
+      rows -= previous.length;
+    }
+    rows += matches.length;
+    for (Iterator<Entry<Key, int[]>> iterator = entries.entrySet().iterator(); iterator.hasNext()
+        && (entries.size() > MAX_ENTRIES || rows > MAX_ROWS);) {
+      rows -= iterator.next().getValue().length;
+      iterator.remove();
+    }
+  }
+}
@@ -0,0 +1,385 @@
+package org.tillerino.ppaddict.server.catalog;
+
+import java.util.Arrays;
+import java.util.BitSet;
+
+import javax.annotation.CheckForNull;
+import javax.annotation.Nonnull;
+
+import org.tillerino.osuApiModel.Mods;
+import org.tillerino.ppaddict.shared.BeatmapRangeRequest;
+import org.tillerino.ppaddict.shared.BeatmapRangeRequest.Sort;
+import org.tillerino.ppaddict.shared.MinMax;
+import org.tillerino.ppaddict.shared.Settings;
+
+/**
+ * The {@link MinMax} and mods filters of a {@link BeatmapRangeRequest}, unboxed once per request.
+ * Absent bounds are infinite, so every check is a plain comparison against a catalog column. Rows
+ * can either be checked one at a time with {@link #accept(int)} or all at once, one column at a
+ * time, with {@link #select()}.
+ *
+ * @author Tillerino
+ */
+public class RangeFilter {
+  /**
+   * a {@link BucketIndex} is used if it touches less than one in this many rows
+   */
+  static final int INDEX_RATIO = 4;
+
+  private final BeatmapCatalog catalog;
+
+  private final double lowAccuracy;
+  private final double highAccuracy;
+
+  final double minAR, maxAR;
+  final double minOD, maxOD;
+  final double minCS, maxCS;
+  final double minBpm, maxBpm;
+  final double minLength, maxLength;
+  final double minExpectedPP, maxExpectedPP;
+  final double minPerfectPP, maxPerfectPP;
+  /**
+   * multiplied by 100 like {@link BeatmapRangeRequest#starDiff}
+   */
+  final double minStarDiff, maxStarDiff;
+  /**
+   * rows without star diff are dropped if star diff is filtered or sorted by
+   */
+  final boolean requireStarDiff;
+
+  final boolean filterExpectedPP;
+  final boolean filterPerfectPP;
+
+  /**
+   * if true, only rows with exactly these mods are accepted
+   */
+  final boolean filterMods;
+  final long mods;
+
+  public RangeFilter(@Nonnull BeatmapCatalog catalog, @Nonnull BeatmapRangeRequest request,
+      @Nonnull Settings settings) {
+    this.catalog = catalog;
+
+    lowAccuracy = settings.getLowAccuracy();
+    highAccuracy = settings.getHighAccuracy();
+
+    minAR = min(request.aR);
+    maxAR = max(request.aR);
+    minOD = min(request.oD);
+    maxOD = max(request.oD);
+    minCS = min(request.cS);
+    maxCS = max(request.cS);
+    minBpm = min(request.bpm);
+    maxBpm = max(request.bpm);
+    minLength = min(request.mapLength);
+    maxLength = max(request.mapLength);
+    minExpectedPP = min(request.expectedPP);
+    maxExpectedPP = max(request.expectedPP);
+    minPerfectPP = min(request.perfectPP);
+    maxPerfectPP = max(request.perfectPP);
+    minStarDiff = min(request.starDiff);
+    maxStarDiff = max(request.starDiff);
+
+    requireStarDiff =
+        request.sortBy == Sort.STAR_DIFF || request.starDiff.min != null
+            || request.starDiff.max != null;
+    filterExpectedPP = request.expectedPP.min != null || request.expectedPP.max != null;
+    filterPerfectPP = request.perfectPP.min != null || request.perfectPP.max != null;
+
+    Long mods = parseMods(request.mods);
+    filterMods = mods != null;
+    this.mods = mods != null ? mods : 0;
+  }
+
+  /**
+   * @return the mods of {@link BeatmapRangeRequest#mods}; null if any mods are fine. Mods which
+   *         can't be parsed give -1, which no beatmap has.
+   */
+  @CheckForNull
+  public static Long parseMods(@CheckForNull String mods) {
+    if (mods == null || mods.trim().isEmpty()) {
+      return null;
+    }
+    String names = mods.trim().toUpperCase();
+    if (names.equals("NM")) {
+      return 0L;
+    }
+    Long parsed = Mods.fromShortNamesContinuous(names);
+    return parsed != null ? parsed : -1L;
+  }
+
+  /**
+   * @return true if none of the bounds are set. Rows without star diff are still dropped when
+   *         sorting by star diff.
+   */
+  public boolean isEmpty() {
+    return minAR == Double.NEGATIVE_INFINITY && maxAR == Double.POSITIVE_INFINITY
+        && minOD == Double.NEGATIVE_INFINITY && maxOD == Double.POSITIVE_INFINITY
+        && minCS == Double.NEGATIVE_INFINITY && maxCS == Double.POSITIVE_INFINITY
+        && minBpm == Double.NEGATIVE_INFINITY && maxBpm == Double.POSITIVE_INFINITY
+        && minLength == Double.NEGATIVE_INFINITY && maxLength == Double.POSITIVE_INFINITY
+        && minStarDiff == Double.NEGATIVE_INFINITY && maxStarDiff == Double.POSITIVE_INFINITY
+        && !filterExpectedPP && !filterPerfectPP && !filterMods;
+  }
+
+  /**
+   * @return true if the pp filters can't use the precomputed columns, which makes every row
+   *         considerably more expensive
+   */
+  public boolean isComputingPP() {
+    return (filterExpectedPP && !catalog.isPPPrecomputed(lowAccuracy))
+        || (filterPerfectPP && !catalog.isPPPrecomputed(highAccuracy));
+  }
+
+  static double min(@CheckForNull MinMax minMax) {
+    return minMax != null && minMax.min != null ? minMax.min : Double.NEGATIVE_INFINITY;
+  }
+
+  static double max(@CheckForNull MinMax minMax) {
+    return minMax != null && minMax.max != null ? minMax.max : Double.POSITIVE_INFINITY;
+  }
+
+  public boolean accept(int row) {
+    BeatmapCatalog c = catalog;
+    if (filterMods && c.mods[row] != mods) {
+      return false;
+    }
+    double value = c.approachRate.get(row);
+    if (value < minAR || value > maxAR) {
+      return false;
+    }
+    value = c.overallDifficulty.get(row);
+    if (value < minOD || value > maxOD) {
+      return false;
+    }
+    value = c.circleSize.get(row);
+    if (value < minCS || value > maxCS) {
+      return false;
+    }
+    value = c.bpm.get(row);
+    if (value < minBpm || value > maxBpm) {
+      return false;
+    }
+    value = c.length.get(row);
+    if (value < minLength || value > maxLength) {
+      return false;
+    }
+    if (requireStarDiff) {
+      // these are multiplied by 100 for fake decimals. NaN fails both comparisons.
+      value = c.starDiff[row] * 100;
+      if (!(value >= minStarDiff && value <= maxStarDiff)) {
+        return false;
+      }
+    }
+    if (filterPerfectPP) {
+      value = c.getPP(row, highAccuracy);
+      if (value < minPerfectPP || value > maxPerfectPP) {
+        return false;
+      }
+    }
+    if (filterExpectedPP) {
+      value = c.getPP(row, lowAccuracy);
+      if (value < minExpectedPP || value > maxExpectedPP) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  /**
+   * Evaluates the filter for the entire catalog. Narrow ranges are looked up in the columns'
+   * {@link BucketIndex}es. Other bounded stored columns are scanned once and set the bits of a
+   * 64-row word without branching. {@link ModColumn}s are only derived for the rows which are still
+   * left. Words without any remaining rows are skipped for the following columns.
+   *
+   * @return the accepted rows; same result as {@link #accept(int)}
+   */
+  @Nonnull
+  public BitSet select() {
+    BeatmapCatalog c = catalog;
+    int size = c.size;
+    long[] words = new long[(size + 63) >>> 6];
+    Arrays.fill(words, -1L);
+    if ((size & 63) != 0) {
+      words[words.length - 1] = (1L << (size & 63)) - 1;
+    }
+
+    if (filterMods) {
+      andMods(words);
+    }
+
+    and(words, size, c.approachRate, c.approachRateBuckets, minAR, maxAR);
+    and(words, size, c.overallDifficulty, c.overallDifficultyBuckets, minOD, maxOD);
+    and(words, size, c.circleSize, c.circleSizeBuckets, minCS, maxCS);
+    and(words, size, c.bpm, c.bpmBuckets, minBpm, maxBpm);
+    and(words, size, c.length, c.lengthBuckets, minLength, maxLength);
+    if (requireStarDiff) {
+      // these are multiplied by 100 for fake decimals
+      if (isBounded(minStarDiff, maxStarDiff)
+          && useIndex(c.starDiffBuckets.estimate(100, minStarDiff, maxStarDiff, false), size)) {
+        c.starDiffBuckets.and(words, 100, minStarDiff, maxStarDiff, false);
+      } else {
+        andKnown(words, size, c.starDiff);
+        and(words, size, c.starDiff, 100, minStarDiff, maxStarDiff);
+      }
+    }
+    if (filterPerfectPP) {
+      if (highAccuracy == Settings.DEFAULT_SETTINGS.getHighAccuracy()) {
+        and(words, size, c.perfectPP, c.perfectPPBuckets, 1, minPerfectPP, maxPerfectPP);
+      } else {
+        andPP(words, highAccuracy, minPerfectPP, maxPerfectPP);
+      }
+    }
+    if (filterExpectedPP) {
+      if (lowAccuracy == Settings.DEFAULT_SETTINGS.getLowAccuracy()) {
+        and(words, size, c.expectedPP, c.expectedPPBuckets, 1, minExpectedPP, maxExpectedPP);
+      } else {
+        andPP(words, lowAccuracy, minExpectedPP, maxExpectedPP);
+      }
+    }
+    return BitSet.valueOf(words);
+  }
+
+  /**
+   * keeps the rows with exactly the filtered mods: every bit of the mods set and every other bit
+   * clear
+   */
+  private void andMods(long[] words) {
+    long[][] modBits = catalog.modBits;
+    for (int bit = 0; bit < 64; bit++) {
+      long[] rows = modBits[bit];
+      if ((mods & (1L << bit)) != 0) {
+        if (rows == null) {
+          Arrays.fill(words, 0);
+          return;
+        }
+        for (int w = 0; w < words.length; w++) {
+          words[w] &= rows[w];
+        }
+      } else if (rows != null) {
+        for (int w = 0; w < words.length; w++) {
+          words[w] &= ~rows[w];
+        }
+      }
+    }
+  }
+
+  static boolean isBounded(double min, double max) {
+    return min != Double.NEGATIVE_INFINITY || max != Double.POSITIVE_INFINITY;
+  }
+
+  /**
+   * @param estimate see {@link BucketIndex#estimate(double, double, double, boolean)}
+   * @return true if the index touches few enough rows to beat scanning the column
+   */
+  static boolean useIndex(int estimate, int size) {
+    return (long) estimate * INDEX_RATIO < size;
+  }
+
+  /**
+   * clears the bits of rows where column * scale is out of bounds, using the index if the range is
+   * narrow enough
+   */
+  static void and(long[] words, int size, double[] column, BucketIndex index, double scale,
+      double min, double max) {
+    if (!isBounded(min, max)) {
+      return;
+    }
+    // NaN passes the row by row check
+    if (useIndex(index.estimate(scale, min, max, true), size)) {
+      index.and(words, scale, min, max, true);
+    } else {
+      and(words, size, column, scale, min, max);
+    }
+  }
+
+  /**
+   * clears the bits of rows where the derived column is out of bounds, using the index if the range
+   * is narrow enough
+   */
+  static void and(long[] words, int size, ModColumn column, BucketIndex index, double min,
+      double max) {
+    if (!isBounded(min, max)) {
+      return;
+    }
+    if (useIndex(index.estimate(1, min, max, true), size)) {
+      index.and(words, 1, min, max, true);
+      return;
+    }
+    for (int w = 0; w < words.length; w++) {
+      long word = words[w];
+      if (word == 0) {
+        continue;
+      }
+      // only the remaining rows are derived
+      for (long remaining = word; remaining != 0; remaining &= remaining - 1) {
+        int i = Long.numberOfTrailingZeros(remaining);
+        double value = column.get((w << 6) + i);
+        if (value < min || value > max) {
+          word &= ~(1L << i);
+        }
+      }
+      words[w] = word;
+    }
+  }
+
+  /**
+   * clears the bits of rows where column * scale is out of bounds
+   */
+  static void and(long[] words, int size, double[] column, double scale, double min, double max) {
+    if (!isBounded(min, max)) {
+      return;
+    }
+    for (int w = 0; w < words.length; w++) {
+      long word = words[w];
+      if (word == 0) {
+        continue;
+      }
+      int base = w << 6;
+      int n = Math.min(64, size - base);
+      long bits = 0;
+      for (int i = 0; i < n; i++) {
+        double value = column[base + i] * scale;
+        bits |= (value < min | value > max ? 0L : 1L) << i;
+      }
+      words[w] = word & bits;
+    }
+  }
+
+  /**
+   * clears the bits of rows where the column is NaN
+   */
+  static void andKnown(long[] words, int size, double[] column) {
+    for (int w = 0; w < words.length; w++) {
+      long word = words[w];
+      if (word == 0) {
+        continue;
+      }
+      int base = w << 6;
+      int n = Math.min(64, size - base);
+      long bits = 0;
+      for (int i = 0; i < n; i++) {
+        double value = column[base + i];
+        bits |= (value == value ? 1L : 0L) << i;
+      }
+      words[w] = word & bits;
+    }
+  }
+
+  /**
+   * pp for other accuracies than the default ones: only evaluated for the remaining rows
+   */
+  private void andPP(long[] words, double accuracy, double min, double max) {
+    for (int w = 0; w < words.length; w++) {
+      long word = words[w];
+      for (long remaining = word; remaining != 0; remaining &= remaining - 1) {
+        int i = Long.numberOfTrailingZeros(remaining);
+        double value = catalog.getPP((w << 6) + i, accuracy);
+        if (value < min || value > max) {
+          word &= ~(1L << i);
+        }
+      }
+      words[w] = word;
+    }
+  }
+}
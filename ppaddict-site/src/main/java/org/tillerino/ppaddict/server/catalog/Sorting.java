@@ -0,0 +1,134 @@
+package org.tillerino.ppaddict.server.catalog;
+
+/**
+ * Sorting of catalog rows by primitive keys. Unlike a {@link java.util.TreeMap} keyed by the sort
+ * value, equal keys don't collapse into a single entry; ties are broken by row.
+ *
+ * @author Tillerino
+ */
+public class Sorting {
+  private Sorting() {}
+
+  /**
+   * Sorts the first size entries of both arrays by key ascending. keys[i] belongs to rows[i].
+   */
+  public static void sortByKey(double[] keys, int[] rows, int size) {
+    if (size < 2) {
+      return;
+    }
+    double[] keyBuffer = new double[size];
+    int[] rowBuffer = new int[size];
+    System.arraycopy(keys, 0, keyBuffer, 0, size);
+    System.arraycopy(rows, 0, rowBuffer, 0, size);
+    mergeSort(keyBuffer, rowBuffer, keys, rows, 0, size);
+  }
+
+  /**
+   * @return 0..size-1 sorted by key ascending
+   */
+  public static int[] permutation(double[] keys, int size) {
+    double[] sortedKeys = new double[size];
+    System.arraycopy(keys, 0, sortedKeys, 0, size);
+    int[] rows = new int[size];
+    for (int i = 0; i < size; i++) {
+      rows[i] = i;
+    }
+    sortByKey(sortedKeys, rows, size);
+    return rows;
+  }
+
+  /**
+   * Updates a permutation after rows were removed and appended, without sorting everything again.
+   *
+   * @param old permutation sorted by (key, row) of the previous rows
+   * @param remap new row for each previous row, -1 if it was removed. Must preserve the order of
+   *        the remaining rows.
+   * @param keys keys of the new rows
+   * @param firstNew appended rows are firstNew..size-1
+   * @param skipNaN if true, appended rows with NaN keys are left out
+   * @return the new rows sorted by key ascending, same as a fresh
+   *         {@link #permutation(double[], int)}
+   */
+  public static int[] merge(int[] old, int[] remap, double[] keys, int firstNew, int size,
+      boolean skipNaN) {
+    int[] kept = new int[old.length];
+    int keptCount = 0;
+    for (int row : old) {
+      if (remap[row] >= 0) {
+        kept[keptCount++] = remap[row];
+      }
+    }
+
+    int[] added = new int[size - firstNew];
+    double[] addedKeys = new double[size - firstNew];
+    int addedCount = 0;
+    for (int row = firstNew; row < size; row++) {
+      if (!skipNaN || !Double.isNaN(keys[row])) {
+        added[addedCount] = row;
+        addedKeys[addedCount++] = keys[row];
+      }
+    }
+    sortByKey(addedKeys, added, addedCount);
+
+    int[] merged = new int[keptCount + addedCount];
+    int i = 0, j = 0, k = 0;
+    while (i < keptCount && j < addedCount) {
+      if (compare(keys[kept[i]], kept[i], keys[added[j]], added[j]) <= 0) {
+        merged[k++] = kept[i++];
+      } else {
+        merged[k++] = added[j++];
+      }
+    }
+    while (i < keptCount) {
+      merged[k++] = kept[i++];
+    }
+    while (j < addedCount) {
+      merged[k++] = added[j++];
+    }
+    return merged;
+  }
+
+  static int compare(double key1, int row1, double key2, int row2) {
+    int c = Double.compare(key1, key2);
+    if (c != 0) {
+      return c;
+    }
+    return row1 < row2 ? -1 : (row1 == row2 ? 0 : 1);
+  }
+
+  /**
+   * sorts [from, to) of the source arrays into the destination arrays. source and destination
+   * contain the same data when called.
+   */
+  private static void mergeSort(double[] srcKeys, int[] srcRows, double[] keys, int[] rows,
+      int from, int to) {
+    if (to - from < 8) {
+      // insertion sort for short runs
+      for (int i = from + 1; i < to; i++) {
+        double key = keys[i];
+        int row = rows[i];
+        int j = i - 1;
+        for (; j >= from && compare(keys[j], rows[j], key, row) > 0; j--) {
+          keys[j + 1] = keys[j];
+          rows[j + 1] = rows[j];
+        }
+        keys[j + 1] = key;
+        rows[j + 1] = row;
+      }
+      return;
+    }
+    int mid = (from + to) >>> 1;
+    mergeSort(keys, rows, srcKeys, srcRows, from, mid);
+    mergeSort(keys, rows, srcKeys, srcRows, mid, to);
+
+    for (int i = from, p = from, q = mid; i < to; i++) {
+      if (q >= to || p < mid && compare(srcKeys[p], srcRows[p], srcKeys[q], srcRows[q]) <= 0) {
+        keys[i] = srcKeys[p];
+        rows[i] = srcRows[p++];
+      } else {
+        keys[i] = srcKeys[q];
+        rows[i] = srcRows[q++];
+      }
+    }
+  }
+}
@@ -0,0 +1,152 @@
+package org.tillerino.ppaddict.server.catalog;
+
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+import javax.annotation.CheckForNull;
+import javax.annotation.Nonnull;
+
+/**
+ * The strings of a catalog column, dictionary encoded: each row holds the id of its string and
+ * every distinct string is stored once. Mod variants of a beatmap and the difficulties of a set
+ * share their artist and title this way. Equal strings are written to a GWT RPC response only
+ * once, so responses repeat ids rather than strings as well.
+ *
+ * <p>
+ * The dictionary can be {@link #moveOffHeap() moved} into a direct buffer which holds the
+ * characters of all strings back to back, so the garbage collector is left with a single buffer
+ * instead of two objects per string. Strings are then only decoded for the rows which are actually
+ * sent to the client; text searches run on the buffer.
+ *
+ * @author Tillerino
+ */
+public class StringColumn {
+  /**
+   * dictionary id of each row
+   */
+  private final int[] ids;
+
+  /**
+   * string to id while the column is being filled. null after {@link #seal()}.
+   */
+  @CheckForNull
+  private Map<String, Integer> lookup = new HashMap<>();
+
+  private int count = 0;
+
+  /**
+   * the dictionary. null after {@link #moveOffHeap()}.
+   */
+  @CheckForNull
+  private String[] strings = new String[16];
+
+  /**
+   * the characters of string i are chars[offsets[i]] to chars[offsets[i + 1] - 1]. null until
+   * {@link #moveOffHeap()}.
+   */
+  @CheckForNull
+  private CharBuffer chars;
+  @CheckForNull
+  private int[] offsets;
+
+  public StringColumn(int size) {
+    ids = new int[size];
+  }
+
+  /**
+   * @param string null is stored as an empty string
+   * @throws IllegalStateException if the column was sealed
+   */
+  public void set(int row, @CheckForNull String string) {
+    if (lookup == null) {
+      throw new IllegalStateException("column is sealed");
+    }
+    if (string == null) {
+      string = "";
+    }
+    Integer id = lookup.get(string);
+    if (id == null) {
+      id = count;
+      if (count == strings.length) {
+        strings = Arrays.copyOf(strings, count * 2);
+      }
+      strings[count++] = string;
+      lookup.put(string, id);
+    }
+    ids[row] = id;
+  }
+
+  /**
+   * Drops the lookup table which is only needed to fill the column. No strings can be set
+   * afterwards.
+   */
+  public void seal() {
+    if (lookup != null) {
+      lookup = null;
+      if (strings != null) {
+        strings = Arrays.copyOf(strings, count);
+      }
+    }
+  }
+
+  @Nonnull
+  public String get(int row) {
+    int id = ids[row];
+    if (strings != null) {
+      return strings[id];
+    }
+    int start = offsets[id];
+    char[] value = new char[offsets[id + 1] - start];
+    for (int i = 0; i < value.length; i++) {
+      value[i] = chars.get(start + i);
+    }
+    return new String(value);
+  }
+
+  /**
+   * same as {@link String#contains(CharSequence)}, but doesn't decode an off-heap string
+   */
+  public boolean contains(int row, @Nonnull String needle) {
+    int id = ids[row];
+    if (strings != null) {
+      return strings[id].contains(needle);
+    }
+    int start = offsets[id];
+    int last = offsets[id + 1] - needle.length();
+    outer: for (int from = start; from <= last; from++) {
+      for (int i = 0; i < needle.length(); i++) {
+        if (chars.get(from + i) != needle.charAt(i)) {
+          continue outer;
+        }
+      }
+      return true;
+    }
+    return false;
+  }
+
+  /**
+   * {@link #seal() Seals} the column, copies the dictionary into a direct buffer and lets go of
+   * the strings. The buffer is released when the column becomes unreachable. Does nothing if the
+   * column is already off-heap.
+   */
+  public void moveOffHeap() {
+    seal();
+    if (strings == null) {
+      return;
+    }
+    int[] offsets = new int[count + 1];
+    for (int id = 0; id < count; id++) {
+      offsets[id + 1] = offsets[id] + strings[id].length();
+    }
+    CharBuffer chars = ByteBuffer.allocateDirect(offsets[count] * 2).asCharBuffer();
+    for (int id = 0; id < count; id++) {
+      chars.put(strings[id]);
+    }
+    this.offsets = offsets;
+    this.chars = chars;
+    strings = null;
+  }
+}
@@ -0,0 +1,89 @@
+package org.tillerino.ppaddict.server.catalog;
+
+/**
+ * Keeps the first k rows by (key, row) order out of an arbitrary number of offered rows. The heap
+ * lives in two primitive arrays; its root is the worst row that is currently kept.
+ *
+ * @author Tillerino
+ */
+public class TopK {
+  private final int capacity;
+  private final boolean descending;
+  private final double[] keys;
+  private final int[] rows;
+  private int size = 0;
+
+  /**
+   * @param capacity number of rows to keep
+   * @param descending if true, larger keys come first
+   */
+  public TopK(int capacity, boolean descending) {
+    this.capacity = Math.max(0, capacity);
+    this.descending = descending;
+    keys = new double[this.capacity];
+    rows = new int[this.capacity];
+  }
+
+  /**
+   * @return true if (key1, row1) comes after (key2, row2) in the requested order
+   */
+  private boolean after(double key1, int row1, double key2, int row2) {
+    int c = Sorting.compare(key1, row1, key2, row2);
+    return descending ? c < 0 : c > 0;
+  }
+
+  public void offer(double key, int row) {
+    if (size < capacity) {
+      int i = size++;
+      // sift up
+      while (i > 0) {
+        int parent = (i - 1) >>> 1;
+        if (!after(key, row, keys[parent], rows[parent])) {
+          break;
+        }
+        keys[i] = keys[parent];
+        rows[i] = rows[parent];
+        i = parent;
+      }
+      keys[i] = key;
+      rows[i] = row;
+      return;
+    }
+    if (capacity == 0 || !after(keys[0], rows[0], key, row)) {
+      return;
+    }
+    // replace the root and sift down
+    int i = 0;
+    for (;;) {
+      int child = 2 * i + 1;
+      if (child >= size) {
+        break;
+      }
+      if (child + 1 < size && after(keys[child + 1], rows[child + 1], keys[child], rows[child])) {
+        child++;
+      }
+      if (!after(keys[child], rows[child], key, row)) {
+        break;
+      }
+      keys[i] = keys[child];
+      rows[i] = rows[child];
+      i = child;
+    }
+    keys[i] = key;
+    rows[i] = row;
+  }
+
+  /**
+   * Sorts the kept rows and returns the given window of them. Consumes the heap.
+   */
+  public int[] window(int start, int end) {
+    Sorting.sortByKey(keys, rows, size);
+    start = Math.min(Math.max(0, start), size);
+    end = Math.max(start, Math.min(end, size));
+    int[] window = new int[end - start];
+    for (int i = start; i < end; i++) {
+      window[i - start] = descending ? rows[size - 1 - i] : rows[i];
+    }
+    return window;
+  }
+}
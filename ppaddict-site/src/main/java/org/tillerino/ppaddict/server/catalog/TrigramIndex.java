@@ -0,0 +1,151 @@
+package org.tillerino.ppaddict.server.catalog;
+
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.Map;
+
+import javax.annotation.CheckForNull;
+import javax.annotation.Nonnull;
+
+/**
+ * Inverted index from the three-character substrings of a text to the rows containing them. A
+ * substring search only has to verify the rows which contain every trigram of the needle.
+ *
+ * @author Tillerino
+ */
+public class TrigramIndex {
+  private final int size;
+
+  private final Map<Long, Integer> trigramIds;
+
+  /**
+   * the rows of trigram id i are rows[offsets[i]] to rows[offsets[i + 1] - 1], ascending
+   */
+  private final int[] offsets;
+  private final int[] rows;
+
+  private TrigramIndex(int size, Map<Long, Integer> trigramIds, int[] offsets, int[] rows) {
+    this.size = size;
+    this.trigramIds = trigramIds;
+    this.offsets = offsets;
+    this.rows = rows;
+  }
+
+  static long trigram(String text, int position) {
+    return ((long) text.charAt(position) << 32) | ((long) text.charAt(position + 1) << 16)
+        | text.charAt(position + 2);
+  }
+
+  /**
+   * @param texts normalized the same way as the needles will be
+   */
+  @Nonnull
+  public static TrigramIndex build(@Nonnull StringColumn texts, int size) {
+    Map<Long, Integer> trigramIds = new HashMap<>();
+    int[] counts = new int[1024];
+    int[] lastRow = new int[1024];
+
+    /*
+     * first pass: assign ids and count the rows per trigram
+     */
+    for (int row = 0; row < size; row++) {
+      String text = texts.get(row);
+      for (int i = 0; i + 3 <= text.length(); i++) {
+        Long trigram = trigram(text, i);
+        Integer id = trigramIds.get(trigram);
+        if (id == null) {
+          id = trigramIds.size();
+          trigramIds.put(trigram, id);
+          if (id == counts.length) {
+            counts = Arrays.copyOf(counts, id * 2);
+            lastRow = Arrays.copyOf(lastRow, id * 2);
+          }
+          lastRow[id] = -1;
+        }
+        if (lastRow[id] != row) {
+          lastRow[id] = row;
+          counts[id]++;
+        }
+      }
+    }
+
+    int[] offsets = new int[trigramIds.size() + 1];
+    for (int id = 0; id < trigramIds.size(); id++) {
+      offsets[id + 1] = offsets[id] + counts[id];
+    }
+
+    /*
+     * second pass: fill the posting lists. rows are visited in order, so the lists are sorted.
+     */
+    int[] rows = new int[offsets[trigramIds.size()]];
+    int[] cursors = Arrays.copyOf(offsets, trigramIds.size());
+    Arrays.fill(lastRow, -1);
+    for (int row = 0; row < size; row++) {
+      String text = texts.get(row);
+      for (int i = 0; i + 3 <= text.length(); i++) {
+        int id = trigramIds.get(trigram(text, i));
+        if (lastRow[id] != row) {
+          lastRow[id] = row;
+          rows[cursors[id]++] = row;
+        }
+      }
+    }
+
+    return new TrigramIndex(size, trigramIds, offsets, rows);
+  }
+
+  /**
+   * @return the rows which contain every trigram of the needle. These still need to be verified.
+   *         null if the needle is too short to narrow anything down.
+   */
+  @CheckForNull
+  public BitSet candidates(@Nonnull String needle) {
+    if (needle.length() < 3) {
+      return null;
+    }
+
+    int[] ids = new int[needle.length() - 2];
+    for (int i = 0; i < ids.length; i++) {
+      Integer id = trigramIds.get(trigram(needle, i));
+      if (id == null) {
+        return new BitSet(size);
+      }
+      ids[i] = id;
+    }
+
+    // start with the shortest posting list to keep the bitset sparse
+    int shortest = 0;
+    for (int i = 1; i < ids.length; i++) {
+      if (postingLength(ids[i]) < postingLength(ids[shortest])) {
+        shortest = i;
+      }
+    }
+
+    BitSet candidates = toBitSet(ids[shortest]);
+    BitSet posting = new BitSet(size);
+    for (int i = 0; i < ids.length && !candidates.isEmpty(); i++) {
+      if (i == shortest) {
+        continue;
+      }
+      posting.clear();
+      for (int p = offsets[ids[i]]; p < offsets[ids[i] + 1]; p++) {
+        posting.set(rows[p]);
+      }
+      candidates.and(posting);
+    }
+    return candidates;
+  }
+
+  private int postingLength(int id) {
+    return offsets[id + 1] - offsets[id];
+  }
+
+  private BitSet toBitSet(int id) {
+    BitSet bitSet = new BitSet(size);
+    for (int p = offsets[id]; p < offsets[id + 1]; p++) {
+      bitSet.set(rows[p]);
+    }
+    return bitSet;
+  }
+}
@@ -4,12 +4,39 @@ import java.io.Serializable;
 import java.util.ArrayList;
 import java.util.List;
 
+import javax.annotation.CheckForNull;
+
 public class BeatmapBundle implements Serializable {
   private static final long serialVersionUID = 1L;
 
   public List<Beatmap> beatmaps = new ArrayList<Beatmap>();
   public int available;
   public boolean loggedIn;
+  /**
+   * pins the complete result for follow-up requests; only returned by
+   * {@link org.tillerino.ppaddict.client.services.BeatmapTableService#getRangeFromCursor(String, BeatmapRangeRequest)}
+   */
+  @CheckForNull
+  public String cursor;
+
+  /**
+   * histogram of all matches if requested with {@link BeatmapRangeRequest#histograms}, like the
+   * following ones
+   */
+  @CheckForNull
+  public Histogram approachRate;
+  /**
+   * not multiplied by 100 unlike {@link BeatmapRangeRequest#starDiff}
+   */
+  @CheckForNull
+  public Histogram starDiff;
+  @CheckForNull
+  public Histogram bpm;
+  /**
+   * in seconds
+   */
+  @CheckForNull
+  public Histogram length;
 
   public BeatmapBundle() {}
 }
@@ -19,10 +19,12 @@ public class BeatmapRangeRequest implements Serializable {
     mapLength = new MinMax(o.mapLength);
     perfectPP = new MinMax(o.perfectPP);
     starDiff = new MinMax(o.starDiff);
+    mods = o.mods;
 
     direction = o.direction;
     length = o.length;
     loadedUserRequest = o.loadedUserRequest;
+    histograms = o.histograms;
     searches = new Searches(o.searches);
 
     sortBy = o.sortBy;
@@ -73,6 +75,13 @@ public class BeatmapRangeRequest implements Serializable {
 
   public MinMax starDiff = new MinMax(null, null);
 
+  /**
+   * only beatmaps with exactly these mods, as continuous short names like "HDHR". "NM" for no mods.
+   * null or empty for any mods.
+   */
+  @CheckForNull
+  public String mods = null;
+
   /**
    * true if user was logged in. only after this happened, the request will be persisted.
    * 
@@ -80,11 +89,18 @@ public class BeatmapRangeRequest implements Serializable {
    */
   public boolean loadedUserRequest = false;
 
+  /**
+   * if true, the {@link BeatmapBundle} contains histograms of all matches.
+   * 
+   * not persistent, but still transmitted from client to server
+   */
+  public boolean histograms = false;
+
   @Override
   public String toString() {
     return start + " " + length + " " + sortBy + " " + direction + " "
         + getSearches().getSearchText() + " AR " + aR + " CS " + cS + " expected " + expectedPP
-        + " perfect " + perfectPP + " mapLength " + mapLength;
+        + " perfect " + perfectPP + " mapLength " + mapLength + " mods " + mods;
   }
 
 }
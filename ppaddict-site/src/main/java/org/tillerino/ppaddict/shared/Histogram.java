@@ -0,0 +1,41 @@
+package org.tillerino.ppaddict.shared;
+
+import java.io.Serializable;
+
+/**
+ * Counts of values in buckets of equal width. Values below the first bucket are counted in the
+ * first bucket, values above the last bucket in the last bucket. NaN is not counted.
+ *
+ * @author Tillerino
+ */
+public class Histogram implements Serializable {
+  private static final long serialVersionUID = 1L;
+
+  /**
+   * lower bound of the first bucket
+   */
+  public double min;
+  public double width;
+  public int[] counts;
+
+  public Histogram() {}
+
+  public Histogram(double min, double width, int buckets) {
+    this.min = min;
+    this.width = width;
+    counts = new int[buckets];
+  }
+
+  public void add(double value) {
+    if (value != value) {
+      return;
+    }
+    double position = Math.floor((value - min) / width);
+    int bucket = (int) Math.max(0, Math.min(counts.length - 1, position));
+    counts[bucket]++;
+  }
+
+  public double getLowerBound(int bucket) {
+    return min + bucket * width;
+  }
+}
@@ -26,6 +26,9 @@ public class PpaddictTestModule extends ServletModule {
     bind(String.class).annotatedWith(Names.named("ppaddict.auth.returnURL")).toInstance(
         "http://localhost:8080" + AuthArriveService.PATH);
 
+    bind(String.class).annotatedWith(Names.named("ppaddict.auth.cookieKeys")).toInstance(
+        "test:dGVzdCBrZXkgZm9yIHNpZ25pbmcgcHBhZGRpY3QgY29va2llcw==");
+
     bind(Boolean.class).annotatedWith(Names.named("tillerinobot.test.persistentBackend"))
         .toInstance(true);
 
@@ -14,9 +14,12 @@ import java.io.Reader;
 import java.io.Writer;
 import java.sql.SQLException;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Map.Entry;
 import java.util.Scanner;
+import java.util.Set;
 
 import javax.inject.Inject;
 import javax.inject.Singleton;
@@ -158,32 +161,93 @@ public class TestBackend implements PpaddictBackend {
     writeDatabase();
   }
 
-  @Override
-  public Map<BeatmapWithMods, BeatmapData> getBeatmaps() {
-    HashMap<BeatmapWithMods, BeatmapData> ret = new HashMap<>();
+  /*
+   * the beatmaps are only loaded once and then kept up to date with the bot backend's sets. every
+   * change gets a new version for getBeatmapsSince.
+   */
+  Map<BeatmapWithMods, BeatmapData> beatmaps = new HashMap<>();
+  long beatmapsVersion = 1;
+  Map<BeatmapWithMods, Long> upsertVersions = new HashMap<>();
+  Map<BeatmapWithMods, Long> removalVersions = new HashMap<>();
+
+  synchronized void updateBeatmaps() {
+    Set<BeatmapWithMods> current = new HashSet<>();
+    HashMap<BeatmapWithMods, BeatmapData> next = new HashMap<>(beatmaps);
+    boolean changed = false;
 
     for (Integer id : botBackend.getSetIds().keySet()) {
       for (long mods : new long[] {0, getMask(Hidden, HardRock), getMask(DoubleTime)}) {
-        try {
-          final BeatmapMeta meta = botBackend.loadBeatmap(id, mods, new Default());
-          ret.put(new BeatmapWithMods(id, mods), new BeatmapData() {
-            @Override
-            public PercentageEstimates getEstimates() {
-              return meta.getEstimates();
-            }
-
-            @Override
-            public OsuApiBeatmap getBeatmap() {
-              return meta.getBeatmap();
-            }
-          });
-        } catch (SQLException | IOException | UserException e) {
-          throw new RuntimeException(e);
+        BeatmapWithMods key = new BeatmapWithMods(id, mods);
+        current.add(key);
+        if (!next.containsKey(key)) {
+          next.put(key, loadBeatmapData(id, mods));
+          upsertVersions.put(key, beatmapsVersion + 1);
+          removalVersions.remove(key);
+          changed = true;
         }
       }
     }
+    for (BeatmapWithMods key : beatmaps.keySet()) {
+      if (!current.contains(key)) {
+        next.remove(key);
+        removalVersions.put(key, beatmapsVersion + 1);
+        upsertVersions.remove(key);
+        changed = true;
+      }
+    }
 
-    return ret;
+    if (changed) {
+      beatmaps = next;
+      beatmapsVersion++;
+    }
+  }
+
+  private BeatmapData loadBeatmapData(int id, long mods) {
+    try {
+      final BeatmapMeta meta = botBackend.loadBeatmap(id, mods, new Default());
+      return new BeatmapData() {
+        @Override
+        public PercentageEstimates getEstimates() {
+          return meta.getEstimates();
+        }
+
+        @Override
+        public OsuApiBeatmap getBeatmap() {
+          return meta.getBeatmap();
+        }
+      };
+    } catch (SQLException | IOException | UserException e) {
+      throw new RuntimeException(e);
+    }
+  }
+
+  @Override
+  public synchronized Map<BeatmapWithMods, BeatmapData> getBeatmaps() {
+    updateBeatmaps();
+    return beatmaps;
+  }
+
+  @Override
+  public synchronized BeatmapsDelta getBeatmapsSince(long version) {
+    updateBeatmaps();
+    if (version > beatmapsVersion) {
+      return null;
+    }
+    Map<BeatmapWithMods, BeatmapData> upserts = new HashMap<>();
+    for (Entry<BeatmapWithMods, Long> entry : upsertVersions.entrySet()) {
+      if (entry.getValue() > version) {
+        upserts.put(entry.getKey(), beatmaps.get(entry.getKey()));
+      }
+    }
+    Set<BeatmapWithMods> removals = new HashSet<>();
+    if (version > 0) {
+      for (Entry<BeatmapWithMods, Long> entry : removalVersions.entrySet()) {
+        if (entry.getValue() > version) {
+          removals.add(entry.getKey());
+        }
+      }
+    }
+    return new BeatmapsDelta(beatmapsVersion, upserts, removals);
   }
 
   @Override